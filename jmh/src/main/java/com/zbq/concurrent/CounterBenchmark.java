@@ -0,0 +1,271 @@
+package com.zbq.concurrent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LongAdderDemo中几种计数方式的JMH版本
+ *
+ * 每种计数方式（strategy）在不同的读写比例（readPercent，每100次操作中读的次数）下测试吞吐量：
+ * 0是只写，10是写多读少，90是读多写少。LongAdder和LongAccumulator的写分散在多个cell上，读却要累加所有cell，
+ * 读多的时候优势会变小甚至变成劣势。
+ *
+ * 线程数不能作为@Param，由main()对每个线程数单独运行一次：默认是1、2、4 ... 直到CPU核数（包括核数本身），
+ * 也可以用第一个参数指定，例如"1,4,16"。每个线程数的结果写到当前目录下的target/counter-t<线程数>.json
+ * （-Dresult.dir可以修改目录），最后输出汇总表。
+ *
+ * 运行：mvn -f jmh/pom.xml package && java -jar jmh/target/benchmarks.jar
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CounterBenchmark {
+
+    @Param({"synchronized", "atomicLong", "longAdder", "longAccumulator", "varHandleGetAndAdd", "varHandleCas"})
+    String strategy;
+
+    @Param({"0", "10", "90"})
+    int readPercent;
+
+    Counter counter;
+
+    @Setup
+    public void setup() {
+        counter = Counter.of(strategy);
+    }
+
+    /**
+     * 每个线程自己的操作序号，决定这一次是读还是写
+     */
+    @State(Scope.Thread)
+    public static class Ops {
+        int i;
+
+        /**
+         * 以37为步长遍历0到99，读和写交错分布，而不是连续readPercent次读之后再连续写
+         */
+        int next() {
+            i += 37;
+            if (i >= 100) {
+                i -= 100;
+            }
+            return i;
+        }
+    }
+
+    @Benchmark
+    public long mixed(Ops ops) {
+        if (ops.next() < readPercent) {
+            return counter.get();
+        }
+        counter.increment();
+        return 0;
+    }
+
+    interface Counter {
+        void increment();
+
+        long get();
+
+        static Counter of(String strategy) {
+            switch (strategy) {
+                case "synchronized":
+                    return new SyncCounter();
+                case "atomicLong":
+                    return new AtomicLongCounter();
+                case "longAdder":
+                    return new LongAdderCounter();
+                case "longAccumulator":
+                    return new LongAccumulatorCounter();
+                case "varHandleGetAndAdd":
+                    return new VarHandleCounter();
+                case "varHandleCas":
+                    return new VarHandleCasCounter();
+                default:
+                    throw new IllegalArgumentException("unknown strategy: " + strategy);
+            }
+        }
+    }
+
+    /**
+     * 和LongAdderDemo.inc()一样的有锁加法
+     */
+    static final class SyncCounter implements Counter {
+        private long count;
+
+        @Override
+        public synchronized void increment() {
+            count++;
+        }
+
+        @Override
+        public synchronized long get() {
+            return count;
+        }
+    }
+
+    static final class AtomicLongCounter implements Counter {
+        private final AtomicLong count = new AtomicLong();
+
+        @Override
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public long get() {
+            return count.get();
+        }
+    }
+
+    static final class LongAdderCounter implements Counter {
+        private final LongAdder count = new LongAdder();
+
+        @Override
+        public void increment() {
+            count.increment();
+        }
+
+        @Override
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    static final class LongAccumulatorCounter implements Counter {
+        private final LongAccumulator count = new LongAccumulator(Long::sum, 0);
+
+        @Override
+        public void increment() {
+            count.accumulate(1);
+        }
+
+        @Override
+        public long get() {
+            return count.get();
+        }
+    }
+
+    /**
+     * VarHandle的getAndAdd，和AtomicLong一样是一条lock xadd，但没有AtomicLong对象的间接引用
+     */
+    static final class VarHandleCounter implements Counter {
+        private static final VarHandle COUNT;
+        private volatile long count;
+
+        static {
+            try {
+                COUNT = MethodHandles.lookup().findVarHandle(VarHandleCounter.class, "count", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        @Override
+        public void increment() {
+            COUNT.getAndAdd(this, 1L);
+        }
+
+        @Override
+        public long get() {
+            return (long) COUNT.getOpaque(this);
+        }
+    }
+
+    /**
+     * VarHandle的CAS循环：竞争时失败重试，用来和getAndAdd（硬件保证一次成功）对比
+     */
+    static final class VarHandleCasCounter implements Counter {
+        private static final VarHandle COUNT;
+        private volatile long count;
+
+        static {
+            try {
+                COUNT = MethodHandles.lookup().findVarHandle(VarHandleCasCounter.class, "count", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        @Override
+        public void increment() {
+            long v;
+            do {
+                v = count;
+            } while (!COUNT.weakCompareAndSet(this, v, v + 1));
+        }
+
+        @Override
+        public long get() {
+            return (long) COUNT.getOpaque(this);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> threads = new ArrayList<Integer>();
+        if (args.length > 0) {
+            for (String t : args[0].split(",")) {
+                threads.add(Integer.parseInt(t.trim()));
+            }
+        } else {
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int t = 1; t < cores; t <<= 1) {
+                threads.add(t);
+            }
+            threads.add(cores);
+        }
+
+        File dir = new File(System.getProperty("result.dir", "target"));
+        dir.mkdirs();
+        List<RunResult> results = new ArrayList<RunResult>();
+        List<Integer> resultThreads = new ArrayList<Integer>();
+        for (int t : threads) {
+            Options options = new OptionsBuilder()
+                    .include("^" + CounterBenchmark.class.getName() + "\\.")
+                    .threads(t)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(dir, "counter-t" + t + ".json").getPath())
+                    .build();
+            for (RunResult result : new Runner(options).run()) {
+                results.add(result);
+                resultThreads.add(t);
+            }
+        }
+
+        System.out.println();
+        System.out.println("threads\tstrategy\treadPercent\tops/us\terror");
+        for (int i = 0; i < results.size(); i++) {
+            RunResult result = results.get(i);
+            System.out.printf("%d\t%s\t%s\t%.1f\t%.1f%n", resultThreads.get(i), result.getParams().getParam("strategy"),
+                    result.getParams().getParam("readPercent"), result.getPrimaryResult().getScore(),
+                    result.getPrimaryResult().getScoreError());
+        }
+    }
+}
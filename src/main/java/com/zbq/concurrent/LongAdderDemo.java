@@ -1,5 +1,6 @@
 package com.zbq.concurrent;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.Random;
@@ -171,6 +172,53 @@ public class LongAdderDemo {
 
     }
 
+    /**
+     * 4.使用QuotaCounter：每个线程分批领取配额，不需要每次都sum()一遍所有cell来判断是否到达目标值，
+     * 并且计数正好停在TARGET_COUNT
+     */
+    public class QuotaThread implements Runnable {
+        protected long starttime;
+        QuotaCounter counter;
+        CountDownLatch done;
+        //所有线程tryIncrement()返回true的总次数
+        LongAdder succeeded = new LongAdder();
+
+        public QuotaThread(QuotaCounter counter, CountDownLatch done, long starttime) {
+            this.counter = counter;
+            this.done = done;
+            this.starttime = starttime;
+
+        }
+
+        @Override
+        public void run() {
+            while (counter.tryIncrement()) {
+                succeeded.increment();
+            }
+            long endtime = System.currentTimeMillis();
+            System.out.println("QuotaCounter spend:" + (endtime - starttime) + "ms" + " v=" + counter.get());
+            done.countDown();
+
+        }
+    }
+
+    @Test
+    public void testQuota() throws InterruptedException {
+        ExecutorService exe = Executors.newFixedThreadPool(MAX_THREADS);
+        CountDownLatch done = new CountDownLatch(TASK_COUNT);
+        long starttime = System.currentTimeMillis();
+        QuotaThread quota = new QuotaThread(new QuotaCounter(TARGET_COUNT, 1024), done, starttime);
+        for (int i = 0; i < TASK_COUNT; i++) {
+            exe.submit(quota);                                //提交线程开始计算
+        }
+        done.await();
+        exe.shutdown();
+        //所有线程都返回了false：成功的次数正好是上限，没有超过
+        Assert.assertEquals(TARGET_COUNT, quota.succeeded.sum());
+        Assert.assertEquals(TARGET_COUNT, quota.counter.get());
+
+    }
+
     public static void main(String[] args) throws Exception {
         LongAccumulator accumulator = new LongAccumulator(Long::max, Long.MIN_VALUE);
         Thread[] ts = new Thread[1000];
@@ -0,0 +1,208 @@
+package com.zbq.concurrent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 有上限的计数器：总共最多成功limit次，永远不会超过
+ *
+ * LongAdderDemo.LongAddrThread每次increment()之后都要sum()一次来判断是否到达目标值，sum()要遍历所有cell，
+ * 抵消了分段计数的好处。这里改成分批领取配额（常用于限流配额、ID号段）：
+ * 1.未分配的配额放在全局的remaining中，每个线程一次从中领取一批，放在自己的Quota里；
+ * 2.Quota只由它所属的线程修改，tryIncrement()消耗自己的配额时是普通的读写，没有CAS也没有volatile写，用完了才去全局领取下一批；
+ * 3.每批的大小不超过batchSize，并且剩余的配额越少，每批越小（不超过剩余配额除以线程数的一半），减少被其它线程攥在手里的配额；
+ * 4.全局的配额领完以后，把已经结束的线程手里没有用完的配额收回到全局，并等待正在搬运中的配额落地，
+ *   都没有时tryIncrement()才返回false。这时还没用完的配额都在其它存活线程自己的Quota中，它们继续调用会把配额用完，
+ *   因此所有线程都调用到返回false时，计数正好停在limit；线程长时间空闲之前可以调用release()把配额还给全局。
+ *
+ * 结束的线程的Quota在收回配额的同时从quotas中删除，quotas的大小不会随着出现过的线程数增长。
+ */
+public final class QuotaCounter {
+
+    private static final VarHandle LEFT;
+
+    static {
+        try {
+            LEFT = MethodHandles.lookup().findVarHandle(QuotaValue.class, "left", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * left前后各填充至少64字节，不和其它线程的Quota或者别的对象共享缓存行。
+     * JVM会重排同一个类中的字段，但父类的字段总是在子类的字段之前，所以用继承来保证填充的位置
+     */
+    static class QuotaPadding {
+        long p01, p02, p03, p04, p05, p06, p07, p08;
+    }
+
+    static class QuotaValue extends QuotaPadding {
+        //只由owner修改；其它线程读取时（get()、收回结束的线程的配额）用opaque模式，保证读到的long不会被撕裂
+        long left;
+    }
+
+    /**
+     * 一个线程领到的还没有用完的配额
+     */
+    static final class Quota extends QuotaValue {
+        long p11, p12, p13, p14, p15, p16, p17, p18;
+        final Thread owner = Thread.currentThread();
+
+        long left() {
+            return (long) LEFT.getOpaque(this);
+        }
+
+        /**
+         * 只能由owner调用。opaque写在x86和ARM上都是一条普通的store，只是保证其它线程读到完整的值
+         */
+        void setLeft(long left) {
+            LEFT.setOpaque(this, left);
+        }
+    }
+
+    private final long limit;
+    private final int batchSize;
+    //还没有分配给任何线程的配额
+    private final AtomicLong remaining;
+    //正在全局和线程之间搬运配额的线程数，不为0时有配额既不在remaining中，也不在任何Quota中
+    private final AtomicInteger moving = new AtomicInteger();
+    //存活的线程（以及还没有被清理的已结束线程）的Quota
+    private final CopyOnWriteArrayList<Quota> quotas = new CopyOnWriteArrayList<Quota>();
+    private final ThreadLocal<Quota> local = new ThreadLocal<Quota>() {
+        @Override
+        protected Quota initialValue() {
+            //新线程出现时顺便清理已经结束的线程
+            reclaimExited();
+            Quota quota = new Quota();
+            quotas.add(quota);
+            return quota;
+        }
+    };
+
+    /**
+     * @param limit     最多成功的次数
+     * @param batchSize 一个线程一次最多领取的配额
+     */
+    public QuotaCounter(long limit, int batchSize) {
+        if (limit < 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("limit=" + limit + ", batchSize=" + batchSize);
+        }
+        this.limit = limit;
+        this.batchSize = batchSize;
+        this.remaining = new AtomicLong(limit);
+    }
+
+    /**
+     * 计数加一，已经到达上限时返回false
+     */
+    public boolean tryIncrement() {
+        Quota quota = local.get();
+        long left = quota.left;
+        if (left > 0) {
+            quota.setLeft(left - 1);
+            return true;
+        }
+        return refill(quota);
+    }
+
+    /**
+     * 从全局领取一批配额，用掉其中的一个，剩下的放入quota；全局没有了就收回已经结束的线程的配额
+     */
+    private boolean refill(Quota quota) {
+        for (; ; ) {
+            long r = remaining.get();
+            if (r == 0) {
+                if (reclaimExited()) {
+                    continue;
+                }
+                if (moving.get() != 0) {
+                    //搬运的线程可能被调度出去了，让出CPU等它完成
+                    Thread.yield();
+                    continue;
+                }
+                //release()先增加moving再取走配额，所以这里moving为0时，之前取走的配额已经回到了remaining，
+                //再检查一次remaining，仍然为0说明配额确实都用完了（或者在其它存活线程自己的Quota中）
+                if (remaining.get() == 0) {
+                    return false;
+                }
+                continue;
+            }
+            long grant = Math.min(batchSize, Math.max(1, r / (2 * quotas.size())));
+            moving.incrementAndGet();
+            try {
+                if (remaining.compareAndSet(r, r - grant)) {
+                    //走到这里说明自己的配额已经用完，left为0
+                    quota.setLeft(grant - 1);
+                    return true;
+                }
+            } finally {
+                moving.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 把已经结束的线程手里的配额收回到全局，并把它们的Quota从quotas中删除
+     *
+     * @return 是否收回了配额
+     */
+    private boolean reclaimExited() {
+        boolean reclaimed = false;
+        for (Quota quota : quotas) {
+            //线程结束之前的写对isAlive()返回false之后的读可见
+            if (quota.owner.isAlive()) {
+                continue;
+            }
+            moving.incrementAndGet();
+            try {
+                //多个线程同时清理时只有一个能拿到配额
+                long left = (long) LEFT.getAndSet(quota, 0L);
+                if (left > 0) {
+                    remaining.addAndGet(left);
+                    reclaimed = true;
+                }
+            } finally {
+                moving.decrementAndGet();
+            }
+            quotas.remove(quota);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * 当前线程没有用完的配额还给全局，例如线程在长时间空闲之前调用，让其它线程可以拿到
+     */
+    public void release() {
+        Quota quota = local.get();
+        //先增加moving再取走配额，其它线程在配额落地之前不会认为配额已经用完
+        moving.incrementAndGet();
+        try {
+            long left = quota.left;
+            if (left > 0) {
+                quota.setLeft(0);
+                remaining.addAndGet(left);
+            }
+        } finally {
+            moving.decrementAndGet();
+        }
+    }
+
+    /**
+     * 已经成功的次数。有线程正在领取、消耗或者归还配额时是近似值，但不会超过limit
+     */
+    public long get() {
+        long unused = remaining.get();
+        for (Quota quota : quotas) {
+            unused += quota.left();
+        }
+        return Math.max(0, limit - unused);
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+}
@@ -1,34 +1,195 @@
 package com.zbq.io.aio;
 
+import com.zbq.io.buffer.BufferPool;
+import com.zbq.io.buffer.PooledBuffer;
+import com.zbq.metrics.LatencyRecorder;
+import com.zbq.metrics.LatencyReporter;
+import com.zbq.metrics.MaxGauge;
+import com.zbq.metrics.Meter;
+import com.zbq.metrics.MetricRegistry;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by zhangboqing on 2017/6/6.
+ *
+ * 每个连接都是一条完全异步的回调链：读完成 → 写（写不完时继续写）→ 写完成 → 再读，直到客户端关闭连接。
+ * 回调中不调用任何Future.get()，不会阻塞通道组的线程，因此同时处理的连接数不再受线程数限制，
+ * 吞吐量随通道组的线程数增长。
+ *
+ * 通道组（AsynchronousChannelGroup）决定了由哪些线程执行完成回调：
+ * 1.DEFAULT：JVM默认的通道组，线程数由系统属性决定，无法控制；
+ * 2.FIXED：固定线程数的通道组，线程直接等待IO事件并执行回调，回调绝对不能阻塞，否则会占用一个等待事件的线程；
+ * 3.CACHED：使用可以按需创建线程的线程池，另外有initialSize个内部线程等待IO事件，再把回调交给线程池，回调可以阻塞，但多了一次线程切换。
+ * 另外，读完成后的处理（对于回显就是发起写）可以直接在完成线程中执行（DIRECT），也可以交给另一个线程池（HANDOFF），
+ * 后者适合处理器可能阻塞的情况。每个线程处理了多少次完成回调记录在completions中，用于观察负载是否均衡。
+ * CACHED的线程空闲一段时间后会退出，再按需创建新的线程，completions中只保留存活的线程，已经退出的线程的计数累加到exitedCompletions中。
+ *
+ * accept失败时（例如文件描述符耗尽，EMFILE），立即重新accept很可能马上再次失败，变成空转。
+ * 因此从ACCEPT_RETRY_MIN_MILLIS开始每次加倍地等待一段时间（最长ACCEPT_RETRY_MAX_MILLIS）再重新accept，成功一次后恢复；
+ * 监听端口已经关闭或者通道组已经关闭这类不可恢复的失败则不再accept。
  */
 public class AIOEchoServer {
 
+    /**
+     * 通道组的类型
+     */
+    public enum GroupType {
+        DEFAULT, FIXED, CACHED
+    }
+
+    /**
+     * 读完成后的处理在哪里执行
+     * DIRECT：直接在完成回调的线程中执行
+     * HANDOFF：交给单独的处理线程池执行
+     */
+    public enum DispatchMode {
+        DIRECT, HANDOFF
+    }
+
     public final static int PORT = 8000;
+    //每个连接的缓冲区大小
+    static final int BUFFER_SIZE = 8192;
     private AsynchronousServerSocketChannel server;
+    //读写使用的直接内存池，每个连接从池中申请自己的缓冲区
+    private final BufferPool bufferPool = BufferPool.DEFAULT;
+    //记录每一次从读完数据到写回完成的耗时
+    private final LatencyRecorder latency = new LatencyRecorder("aio");
+    //当前的连接数
+    private final AtomicInteger connections = new AtomicInteger();
+    //指标，main()中交给LatencyReporter定时输出
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final Meter accepts = metrics.meter("aio.accepts");
+    //同时存在的最大连接数
+    private final MaxGauge maxConnections = metrics.maxGauge("aio.maxConnections");
+    //服务器自己创建的通道组，DEFAULT时为null
+    private final AsynchronousChannelGroup group;
+    private DispatchMode dispatchMode = DispatchMode.DIRECT;
+    private ExecutorService handoff;
+    //每个存活的线程处理的完成回调次数；每个线程只写自己的计数器
+    private final Map<Thread, AtomicLong> completions = new ConcurrentHashMap<Thread, AtomicLong>();
+    //已经退出的线程处理的完成回调次数之和
+    private final AtomicLong exitedCompletions = new AtomicLong();
+    private final ThreadLocal<AtomicLong> localCompletions = new ThreadLocal<AtomicLong>() {
+        @Override
+        protected AtomicLong initialValue() {
+            //新线程出现时顺便清理已经退出的线程，completions的大小不会超过存活的线程数
+            removeExitedThreads();
+            AtomicLong counter = new AtomicLong();
+            completions.put(Thread.currentThread(), counter);
+            return counter;
+        }
+    };
+    //accept失败后重试的等待时间
+    static final long ACCEPT_RETRY_MIN_MILLIS = 10;
+    static final long ACCEPT_RETRY_MAX_MILLIS = 1000;
+    //accept失败后延迟重试用的线程，start()时创建
+    private ScheduledExecutorService acceptRetry;
 
     public AIOEchoServer() throws IOException {
-        //绑定了8000端口为服务器端口，并使用AsynchronousServerSocketChannel异步Channel作为服务器，变量名为server
-        server = AsynchronousServerSocketChannel.open().bind(new InetSocketAddress(PORT));
+        this(PORT);
+    }
+
+    /**
+     * @param port 监听端口，为0时由系统分配，可通过getLocalPort()获取
+     */
+    public AIOEchoServer(int port) throws IOException {
+        this(port, GroupType.DEFAULT, 0);
+    }
+
+    /**
+     * @param port      监听端口，为0时由系统分配，可通过getLocalPort()获取
+     * @param groupType 通道组的类型
+     * @param threads   FIXED时是线程数，CACHED时是等待IO事件的内部线程数（initialSize），DEFAULT时忽略
+     */
+    public AIOEchoServer(int port, GroupType groupType, int threads) throws IOException {
+        switch (groupType) {
+            case FIXED:
+                group = AsynchronousChannelGroup.withFixedThreadPool(threads, new NamedThreadFactory("aio-group-"));
+                break;
+            case CACHED:
+                group = AsynchronousChannelGroup.withCachedThreadPool(
+                        Executors.newCachedThreadPool(new NamedThreadFactory("aio-group-")), threads);
+                break;
+            default:
+                group = null;
+        }
+        //绑定服务器端口，并使用AsynchronousServerSocketChannel异步Channel作为服务器，变量名为server
+        //接受的连接和服务器属于同一个通道组
+        server = AsynchronousServerSocketChannel.open(group).bind(new InetSocketAddress(port), 1024);
+        metrics.gauge("aio.connections", this::getConnections);
+        metrics.gauge("aio.completionThreads", () -> {
+            removeExitedThreads();
+            return completions.size();
+        });
+        metrics.gauge("aio.maxThreadCompletions", () -> {
+            long max = 0;
+            for (AtomicLong n : completions.values()) {
+                max = Math.max(max, n.get());
+            }
+            return max;
+        });
+    }
+
+    /**
+     * 设置读完成后的处理在哪里执行，必须在start()之前调用
+     *
+     * @param threads HANDOFF时处理线程池的线程数
+     */
+    public void setDispatchMode(DispatchMode mode, int threads) {
+        this.dispatchMode = mode;
+        if (mode == DispatchMode.HANDOFF) {
+            handoff = Executors.newFixedThreadPool(threads, new NamedThreadFactory("aio-handler-"));
+            metrics.monitor("aio.handler", (ThreadPoolExecutor) handoff);
+        }
+    }
+
+    public DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /**
+     * 给线程编号命名，便于在线程转储和completions中区分
+     */
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger n = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
     }
 
     /**
      * 开启服务器
      * <p>
      * 这个方法除了打印语句外，只调用了一个函数server.accept()
-     * 看到的那一大堆代码只是这个函数的参数。
      * AsynchronousServerSocketChannel.accept()方法会立即返回，它并不会真的去等待客户端的到来。
      *
      * 在这里使用的accept()方法的签名为：public final <A> void accept(A attachment,CompletionHandler<AsynchronousSocketChannel,? super A> handler)
@@ -43,67 +204,247 @@ public class AIOEchoServer {
      *  第一是发起accept请求，告诉系统可以开始监听端口了。
      *  第二，注册Com-pletionHandler实例，告诉系统，一旦有客户端前来连接，如果成功连接，就去执行Completion-Handler.completed()方法；
      *  如果连接失败，就去执行CompletionHandler.failed()方法。所以，server.accept()方法不会阻塞，它会立即返回。
-     *
-     *
-     * @throws InterruptedException
-     * @throws ExecutionException
-     * @throws TimeoutException
      */
-    public void start() throws InterruptedException, ExecutionException, TimeoutException {
-        System.out.println("Server listen on " + PORT);
+    public void start() {
+        System.out.println("Server listen on " + getLocalPort());
+        acceptRetry = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("aio-accept-retry-"));
         //注册事件和事件完成后的处理器
-        server.accept(null, new CompletionHandler<AsynchronousSocketChannel, Object>() {
-            final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        server.accept(null, new AcceptHandler());
+    }
+
+    /**
+     * accept的回调，同时也是延迟重试的任务。
+     * 重试的任务不另外写成匿名类：EMFILE时加载一个新的类也需要打开文件，会失败
+     */
+    class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Object>, Runnable {
+        //下一次accept失败后等待的时间，只在accept的回调和重试任务中访问，同一时刻只有一个accept在进行
+        private long retryMillis = ACCEPT_RETRY_MIN_MILLIS;
+
+        //当completed()被执行时，意味着已经有客户端成功连接了
+        @Override
+        public void completed(AsynchronousSocketChannel result, Object attachment) {
+            countCompletion();
+            accepts.mark();
+            retryMillis = ACCEPT_RETRY_MIN_MILLIS;
+            //先让服务器进行下一个客户端连接的准备，这样处理当前连接的同时就可以接受新的连接
+            server.accept(null, this);
+            new Connection(result).read();
+        }
+
+        @Override
+        public void failed(Throwable exc, Object attachment) {
+            if (!server.isOpen() || exc instanceof ClosedChannelException || !(exc instanceof IOException)) {
+                //监听端口或者通道组已经关闭，不再accept
+                if (server.isOpen()) {
+                    System.out.println("Stop accepting: " + exc);
+                }
+                return;
+            }
+            System.out.println("failed: " + exc + ", retry in " + retryMillis + "ms");
+            acceptRetry.schedule(this, retryMillis, TimeUnit.MILLISECONDS);
+            retryMillis = Math.min(retryMillis * 2, ACCEPT_RETRY_MAX_MILLIS);
+        }
+
+        /**
+         * 等待结束后重新accept
+         */
+        @Override
+        public void run() {
+            if (server.isOpen()) {
+                server.accept(null, this);
+            }
+        }
+    }
+
+    /**
+     * 一个客户端连接，拥有自己的缓冲区，读和写的CompletionHandler也是自己的，每次读写不再创建新的对象。
+     * 同一时刻一个连接上只有一个读或者一个写在进行，因此缓冲区不需要同步
+     */
+    class Connection {
+        final AsynchronousSocketChannel channel;
+        final PooledBuffer pb;
+        final ByteBuffer buffer;
+        long readNanos;
 
-            //当completed()被执行时，意味着已经有客户端成功连接了
+        final CompletionHandler<Integer, Connection> onRead = new CompletionHandler<Integer, Connection>() {
             @Override
-            public void completed(AsynchronousSocketChannel result, Object attachment) {
-                System.out.println(Thread.currentThread().getName());
-                Future<Integer> writeResult = null;
-                try {
-                    buffer.clear();
-                    //使用read()方法读取客户的数据。这里要注意，Asyn-chronousSocketChannel.read()方法也是异步的，
-                    //换句话说它不会等待读取完成了再返回，而是立即返回，返回的结果是一个Future，因此这里就是Future模式的典型应用
-                    //直接调用Future.get()方法，进行等待，将这个异步方法变成了同步方法,执行完成后，数据读取就已经完成了
-                    result.read(buffer).get(100, TimeUnit.SECONDS);
-                    buffer.flip();
-                    //将数据回写给客户端。
-                    // 这里调用的是AsynchronousSocketChannel.write()方法。这个方法不会等待数据全部写完，也是立即返回的。同样，它返回的也是Future对象
-                    writeResult = result.write(buffer);
-                } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
-
-                } catch (TimeoutException e) {
-                    e.printStackTrace();
-
-                } finally {
-                    try {
-                        //服务器进行下一个客户端连接的准备。同时关闭当前正在处理的客户端连接。
-                        // 但在关闭之前，得先确保之前的write()操作已经完成，因此，使用Future.get()方法进行等待
-                        server.accept(null, this);
-                        writeResult.get();
-                        result.close();
-
-                    } catch (Exception e) {
-                        System.out.println(e.toString());
-
-                    }
+            public void completed(Integer n, Connection c) {
+                countCompletion();
+                if (n < 0) {
+                    //客户端关闭了连接
+                    close();
+                    return;
                 }
+                readNanos = System.nanoTime();
+                if (handoff == null) {
+                    process();
+                } else {
+                    handoff.execute(processTask);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Connection c) {
+                close();
             }
+        };
 
+        final CompletionHandler<Integer, Connection> onWrite = new CompletionHandler<Integer, Connection>() {
             @Override
-            public void failed(Throwable exc, Object attachment) {
-                System.out.println("failed: " + exc);
+            public void completed(Integer n, Connection c) {
+                countCompletion();
+                if (buffer.hasRemaining()) {
+                    //write()可能只写出了一部分，继续写剩下的
+                    write();
+                    return;
+                }
+                latency.recordSince(readNanos);
+                read();
+            }
 
+            @Override
+            public void failed(Throwable exc, Connection c) {
+                close();
             }
-        });
+        };
+
+        final Runnable processTask = new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        };
+
+        Connection(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+            this.pb = bufferPool.acquire(BUFFER_SIZE);
+            this.buffer = pb.buffer();
+            maxConnections.update(connections.incrementAndGet());
+        }
+
+        void read() {
+            buffer.clear();
+            channel.read(buffer, this, onRead);
+        }
+
+        /**
+         * 处理读到的数据，对于回显就是把它写回去
+         */
+        void process() {
+            buffer.flip();
+            write();
+        }
+
+        void write() {
+            channel.write(buffer, this, onWrite);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //ignore
+            }
+            connections.decrementAndGet();
+            //已经没有进行中的读写，缓冲区可以归还了
+            pb.release();
+        }
     }
 
+    /**
+     * 当前线程处理的完成回调次数加一，只有当前线程写这个计数器，因此不需要CAS
+     */
+    private void countCompletion() {
+        AtomicLong counter = localCompletions.get();
+        counter.lazySet(counter.get() + 1);
+    }
+
+    /**
+     * 把已经退出的线程的计数累加到exitedCompletions中，并从completions中删除
+     */
+    private void removeExitedThreads() {
+        Iterator<Map.Entry<Thread, AtomicLong>> it = completions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Thread, AtomicLong> e = it.next();
+            //多个线程同时清理时只有删除成功的一方累加
+            if (!e.getKey().isAlive() && completions.remove(e.getKey(), e.getValue())) {
+                exitedCompletions.addAndGet(e.getValue().get());
+            }
+        }
+    }
+
+    /**
+     * 每个存活的线程处理的完成回调次数，按线程名排序；已经退出的线程合计为"exited"
+     */
+    public Map<String, Long> getCompletionsByThread() {
+        removeExitedThreads();
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<Thread, AtomicLong> e : completions.entrySet()) {
+            result.merge(e.getKey().getName(), e.getValue().get(), Long::sum);
+        }
+        long exited = exitedCompletions.get();
+        if (exited > 0) {
+            result.put("exited", exited);
+        }
+        return result;
+    }
+
+    /**
+     * 实际绑定的端口，构造时端口为0时使用
+     */
+    public int getLocalPort() {
+        try {
+            return ((InetSocketAddress) server.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 关闭监听端口。使用自己的通道组时同时关闭所有连接和通道组的线程，否则已经建立的连接不受影响
+     */
+    public void shutdown() throws IOException {
+        server.close();
+        if (group != null) {
+            group.shutdownNow();
+        }
+        if (handoff != null) {
+            handoff.shutdown();
+        }
+        if (acceptRetry != null) {
+            acceptRetry.shutdownNow();
+        }
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    /**
+     * 服务器的指标：接受连接的速率、连接数、各线程的完成回调次数和处理线程池的状态
+     */
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
 
     public static void main(String args[]) throws Exception {
         //调用start()方法开启服务器
         //由于start()方法里使用的都是异步方法，因此它会马上返回，它并不像阻塞方法那样会进行等待
-        new AIOEchoServer().start();
+        //参数：[端口，默认8000] [通道组类型DEFAULT/FIXED/CACHED，默认DEFAULT] [通道组线程数，默认CPU核数]
+        //-Ddispatch=HANDOFF时读完成后的处理交给-Dhandler.threads个线程执行
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : PORT;
+        GroupType groupType = args.length > 1 ? GroupType.valueOf(args[1]) : GroupType.DEFAULT;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        AIOEchoServer server = new AIOEchoServer(port, groupType, threads);
+        server.setDispatchMode(DispatchMode.valueOf(System.getProperty("dispatch", "DIRECT")),
+                Integer.getInteger("handler.threads", Runtime.getRuntime().availableProcessors()));
+        server.start();
+        //按照系统属性stat.interval（秒）定时输出延迟分布、连接数和每个线程处理的完成回调次数
+        LatencyReporter.startDefault(server.getLatency()).addRegistry(server.getMetrics());
         // 主线程可以继续自己的行为
         //如果想让程序驻守执行，等待语句是必需的。
         // 否则，在start()方法结束后，不等客户端到来，程序已经运行完成，主线程就将退出。
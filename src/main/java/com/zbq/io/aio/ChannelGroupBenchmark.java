@@ -0,0 +1,67 @@
+package com.zbq.io.aio;
+
+import com.zbq.io.nio.NIOEchoClient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AIOEchoServer通道组配置的对比测试
+ *
+ * 对每一个连接数，依次使用1、2、4……maxThreads个线程的FIXED通道组，以及CACHED通道组、HANDOFF处理方式，
+ * 用NIOEchoClient进行闭环压测，输出每秒回显的消息数、p99延迟（微秒），
+ * 以及实际执行过完成回调的线程数和其中回调次数最多、最少的线程各占的比例，用于观察负载在线程之间是否均衡。
+ *
+ * 参数：[最大线程数，默认CPU核数*2] [连接数列表，默认10,100,1000] [每轮秒数，默认3] [消息字节数，默认64]
+ */
+public class ChannelGroupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        String connectionList = args.length > 1 ? args[1] : "10,100,1000";
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        System.out.println("conns\tgroup\tdispatch\tmsg/s\tp99(us)\tthreads\tmax%\tmin%");
+        for (String c : connectionList.split(",")) {
+            int connections = Integer.parseInt(c.trim());
+            List<Integer> sizes = new ArrayList<Integer>();
+            for (int t = 1; t < maxThreads; t *= 2) {
+                sizes.add(t);
+            }
+            sizes.add(maxThreads);
+            for (int threads : sizes) {
+                run(connections, AIOEchoServer.GroupType.FIXED, threads, AIOEchoServer.DispatchMode.DIRECT, seconds, size);
+            }
+            run(connections, AIOEchoServer.GroupType.CACHED, 1, AIOEchoServer.DispatchMode.DIRECT, seconds, size);
+            run(connections, AIOEchoServer.GroupType.FIXED, maxThreads, AIOEchoServer.DispatchMode.HANDOFF, seconds, size);
+        }
+    }
+
+    static void run(int connections, AIOEchoServer.GroupType groupType, int threads,
+                    AIOEchoServer.DispatchMode dispatch, int seconds, int size) throws Exception {
+        AIOEchoServer server = new AIOEchoServer(0, groupType, threads);
+        server.setDispatchMode(dispatch, threads);
+        server.start();
+
+        NIOEchoClient client = new NIOEchoClient();
+        client.setConnections(connections, Runtime.getRuntime().availableProcessors());
+        client.setPayloadSize(size);
+        client.setClosedLoop(0);
+        NIOEchoClient.LoadResult result = client.load("localhost", server.getLocalPort(), seconds);
+        server.shutdown();
+
+        long total = 0;
+        long max = 0;
+        long min = Long.MAX_VALUE;
+        for (long n : server.getCompletionsByThread().values()) {
+            total += n;
+            max = Math.max(max, n);
+            min = Math.min(min, n);
+        }
+        int used = server.getCompletionsByThread().size();
+        System.out.printf("%d\t%s(%d)\t%s\t%.0f\t%.1f\t%d\t%.0f\t%.0f%n", connections, groupType, threads, dispatch,
+                result.getThroughput(), result.getCorrected().percentile(99) / 1000.0, used,
+                total == 0 ? 0 : 100.0 * max / total, total == 0 ? 0 : 100.0 * min / total);
+    }
+}
@@ -0,0 +1,146 @@
+package com.zbq.io.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 压测期间定时（默认每100毫秒）采样进程的资源占用：
+ * 1.RSS：/proc/self/status中的VmRSS，记录峰值，不是Linux时为0；
+ * 2.平台线程数：记录峰值，虚拟线程不计入；
+ * 3.分配的字节数：每个线程已经分配的字节数（com.sun.management.ThreadMXBean.getThreadAllocatedBytes()）。
+ *    按线程记录最后一次采样的值，线程退出后它最后一次采样之后分配的部分会漏掉，因此是一个略偏小的估计。
+ * start()之前和stop()之后各采样一次，采样线程本身的开销很小。
+ */
+public class ProcessSampler extends Thread {
+
+    private final long intervalMillis;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final Map<Long, Long> allocatedByThread = new HashMap<Long, Long>();
+    private final Map<Long, Long> baseline = new HashMap<Long, Long>();
+    private volatile long baseRss;
+    private volatile long peakRss;
+    private volatile int peakThreads;
+    private long startNanos;
+    private long stopNanos;
+
+    public ProcessSampler() {
+        this(100);
+    }
+
+    public ProcessSampler(long intervalMillis) {
+        super("bench-sampler");
+        setDaemon(true);
+        this.intervalMillis = intervalMillis;
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            ((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        baseRss = rssKb();
+        sampleAllocated(baseline);
+        startNanos = System.nanoTime();
+        super.start();
+    }
+
+    /**
+     * 停止采样并等待采样线程结束
+     */
+    public void finish() throws InterruptedException {
+        interrupt();
+        join();
+        sample();
+        stopNanos = System.nanoTime();
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            sample();
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private synchronized void sample() {
+        peakRss = Math.max(peakRss, rssKb());
+        peakThreads = Math.max(peakThreads, threads.getThreadCount());
+        sampleAllocated(allocatedByThread);
+    }
+
+    private void sampleAllocated(Map<Long, Long> into) {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                into.put(ids[i], bytes[i]);
+            }
+        }
+    }
+
+    /**
+     * 开始时的RSS，单位KB
+     */
+    public long getBaseRss() {
+        return baseRss;
+    }
+
+    /**
+     * RSS的峰值，单位KB
+     */
+    public long getPeakRss() {
+        return peakRss;
+    }
+
+    public int getPeakThreads() {
+        return peakThreads;
+    }
+
+    /**
+     * 采样期间所有线程分配的字节数
+     */
+    public synchronized long getAllocatedBytes() {
+        long total = 0;
+        for (Map.Entry<Long, Long> e : allocatedByThread.entrySet()) {
+            Long base = baseline.get(e.getKey());
+            total += e.getValue() - (base == null ? 0 : base);
+        }
+        return total;
+    }
+
+    /**
+     * 采样期间每秒分配的字节数
+     */
+    public double getAllocationRate() {
+        long elapsed = stopNanos - startNanos;
+        return elapsed <= 0 ? 0 : getAllocatedBytes() * 1e9 / elapsed;
+    }
+
+    /**
+     * 当前进程的常驻内存，单位KB，不是Linux时返回0
+     */
+    public static long rssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException e) {
+            //ignore
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,234 @@
+package com.zbq.io.benchmark;
+
+import com.zbq.io.bio.MultiThreadEchoServer;
+import com.zbq.io.nio.NIOEchoServer;
+import com.zbq.metrics.LatencyHistogram;
+import com.zbq.metrics.LatencyRecorder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SO_REUSEPORT监听分片的连接风暴测试
+ *
+ * 对每一种监听套接字个数，启动NIOEchoServer或MultiThreadEchoServer，由多个客户端线程同时建立conns个连接（不发送数据），
+ * 输出服务器接受所有连接的速率、客户端connect()的耗时（p50/p99，微秒）、失败的连接数，
+ * 以及每个监听套接字接受的连接数和最多/最少的比值（内核按四元组哈希分配，源端口不同时应该接近1）。
+ * overflows是这一轮中accept队列溢出的次数（/proc/net/netstat中的ListenOverflows，整个系统的计数），
+ * 被丢弃的握手要等客户端重传（至少1秒）才能完成，这是单个监听套接字在连接风暴时吞吐量骤降的主要原因。
+ *
+ * 参数：[NIO/BIO，默认NIO] [监听套接字个数列表，默认1,4] [连接数，默认5000] [客户端线程数，默认4]
+ * 每个连接在同一个进程中占用两个文件描述符，注意ulimit -n
+ */
+public class ReusePortBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String model = args.length > 0 ? args[0] : "NIO";
+        String listenerCounts = args.length > 1 ? args[1] : "1,4";
+        int conns = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        System.out.println("model\tlisteners\taccept/s\tp50(us)\tp99(us)\tfailed\toverflows\tdistribution\tmax/min");
+        for (String l : listenerCounts.split(",")) {
+            run(model, Integer.parseInt(l.trim()), conns, threads);
+            System.gc();
+            Thread.sleep(500);
+        }
+    }
+
+    static void run(String model, int listeners, int conns, int threads) throws Exception {
+        final Listening server = "BIO".equals(model) ? bio(listeners) : nio(listeners);
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.port());
+        final LatencyRecorder connectLatency = new LatencyRecorder("connect");
+        final LongAdder failed = new LongAdder();
+        final List<SocketChannel> channels = new ArrayList<SocketChannel>(conns);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int n = conns / threads + (t < conns % threads ? 1 : 0);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<SocketChannel> mine = new ArrayList<SocketChannel>(n);
+                    try {
+                        go.await();
+                        for (int i = 0; i < n; i++) {
+                            long start = System.nanoTime();
+                            try {
+                                mine.add(SocketChannel.open(address));
+                                connectLatency.recordSince(start);
+                            } catch (IOException e) {
+                                failed.increment();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        synchronized (channels) {
+                            channels.addAll(mine);
+                        }
+                        done.countDown();
+                    }
+                }
+            }, "storm-client-" + t).start();
+        }
+
+        long overflows = listenOverflows();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        //connect()返回时连接可能还在accept队列中，等服务器全部接受
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        long[] accepted;
+        while (sum(accepted = server.acceptedByListener()) < channels.size() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        overflows = overflows < 0 ? -1 : listenOverflows() - overflows;
+
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (long a : accepted) {
+            min = Math.min(min, a);
+            max = Math.max(max, a);
+        }
+        LatencyHistogram h = connectLatency.snapshot();
+        System.out.printf("%s\t%d\t%.0f\t%.1f\t%.1f\t%d\t%d\t%s\t%.2f%n", model, listeners, sum(accepted) * 1e9 / elapsed,
+                h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, failed.sum(), overflows, Arrays.toString(accepted),
+                min == 0 ? Double.POSITIVE_INFINITY : (double) max / min);
+
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        server.stop();
+    }
+
+    /**
+     * /proc/net/netstat中TcpExt的ListenOverflows，不是Linux时返回-1
+     */
+    static long listenOverflows() {
+        Path path = Paths.get("/proc/net/netstat");
+        if (!Files.exists(path)) {
+            return -1;
+        }
+        try {
+            String[] names = null;
+            for (String line : Files.readAllLines(path)) {
+                if (!line.startsWith("TcpExt:")) {
+                    continue;
+                }
+                //第一行是名字，第二行是对应的值
+                if (names == null) {
+                    names = line.split("\\s+");
+                } else {
+                    String[] values = line.split("\\s+");
+                    for (int i = 1; i < names.length && i < values.length; i++) {
+                        if ("ListenOverflows".equals(names[i])) {
+                            return Long.parseLong(values[i]);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            //ignore
+        }
+        return -1;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long v : values) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    /**
+     * 可以报告每个监听套接字接受的连接数的服务器
+     */
+    interface Listening extends ServerModel.RunningServer {
+        long[] acceptedByListener();
+    }
+
+    static Listening nio(int listeners) throws IOException {
+        final NIOEchoServer server = new NIOEchoServer("0.0.0.0", 0, 0, NIOEchoServer.BalanceStrategy.ROUND_ROBIN);
+        server.setListeners(listeners);
+        server.setExecutionMode(NIOEchoServer.ExecutionMode.INLINE, 1, 1);
+        server.setQuiet(true);
+        server.bind();
+        final Thread boss = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "nio-boss");
+        boss.start();
+        return new Listening() {
+            @Override
+            public long[] acceptedByListener() {
+                return server.getAcceptedByListener();
+            }
+
+            @Override
+            public int port() {
+                return server.getLocalPort();
+            }
+
+            @Override
+            public void stop() throws Exception {
+                server.shutdown();
+                boss.join();
+            }
+        };
+    }
+
+    static Listening bio(int listeners) throws IOException {
+        final MultiThreadEchoServer server = new MultiThreadEchoServer(0, MultiThreadEchoServer.ThreadMode.PLATFORM);
+        server.setListeners(listeners);
+        server.setQuiet(true);
+        server.bind();
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "bio-acceptor-0");
+        acceptor.start();
+        return new Listening() {
+            @Override
+            public long[] acceptedByListener() {
+                return server.getAcceptedByListener();
+            }
+
+            @Override
+            public int port() {
+                return server.getLocalPort();
+            }
+
+            @Override
+            public void stop() throws Exception {
+                server.shutdown();
+                acceptor.join();
+                server.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        };
+    }
+}
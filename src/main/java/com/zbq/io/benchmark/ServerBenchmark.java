@@ -0,0 +1,96 @@
+package com.zbq.io.benchmark;
+
+import com.zbq.io.nio.NIOEchoClient;
+import com.zbq.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BIO、NIO、AIO回显服务器的统一对比测试
+ *
+ * 对每一种服务器模型、每一个连接数和每一种请求大小，在当前进程中以系统分配的端口启动服务器，
+ * 用同一个NIOEchoClient施加相同的负载（默认闭环，-Drate设置时为每秒固定总请求数的开环），在一张表中输出：
+ * 每秒请求数、p50/p99/p999延迟（微秒，已修正协调遗漏）、平台线程数的峰值、RSS的峰值（MB）和每秒分配的内存（MB/s）。
+ * 客户端和服务器在同一个进程中，线程数、RSS和分配速率都包含了客户端的部分，但客户端对所有模型都是相同的，
+ * 差别来自服务器。每一轮之间会等待服务器的线程退出并做一次GC。
+ *
+ * 参数：[模型列表，默认全部] [连接数列表，默认10,100,1000] [请求字节数列表，默认64,1024,16384] [每轮秒数，默认5]
+ * 例如：ServerBenchmark BIO,NIO_MULTI,AIO 100,1000 64 10
+ * 模型见ServerModel，BIO_VIRTUAL需要在JDK 21上运行，否则跳过；-Dwarmup 每轮预热秒数，默认1
+ */
+public class ServerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        List<ServerModel> models = new ArrayList<ServerModel>();
+        if (args.length > 0 && !"all".equalsIgnoreCase(args[0])) {
+            for (String m : args[0].split(",")) {
+                models.add(ServerModel.valueOf(m.trim()));
+            }
+        } else {
+            for (ServerModel m : ServerModel.values()) {
+                models.add(m);
+            }
+        }
+        int[] connections = parse(args.length > 1 ? args[1] : "10,100,1000");
+        int[] sizes = parse(args.length > 2 ? args[2] : "64,1024,16384");
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        String rate = System.getProperty("rate");
+
+        System.out.println("model\tconns\tsize\treq/s\tp50(us)\tp99(us)\tp999(us)\tthreads\trss(MB)\talloc(MB/s)");
+        for (int c : connections) {
+            for (int size : sizes) {
+                for (ServerModel model : models) {
+                    run(model, c, size, seconds, rate == null ? 0 : Double.parseDouble(rate));
+                }
+            }
+        }
+    }
+
+    static int[] parse(String list) {
+        String[] parts = list.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+
+    static void run(ServerModel model, int connections, int size, int seconds, double rate) throws Exception {
+        ServerModel.RunningServer server;
+        try {
+            server = model.start();
+        } catch (UnsupportedOperationException e) {
+            System.out.println(model + "\t" + connections + "\t" + size + "\tskipped: " + e.getMessage());
+            return;
+        }
+        //上一轮的线程池已经终止，但线程对象可能还没有完全退出，稍等一下再开始采样
+        Thread.sleep(500);
+        System.gc();
+        ProcessSampler sampler = new ProcessSampler();
+        sampler.start();
+        NIOEchoClient client = new NIOEchoClient();
+        client.setConnections(connections, Runtime.getRuntime().availableProcessors());
+        client.setPayloadSize(size);
+        if (rate > 0) {
+            client.setOpenLoop(rate);
+        } else {
+            client.setClosedLoop(0);
+        }
+        client.setWarmup(Integer.getInteger("warmup", 1));
+        NIOEchoClient.LoadResult result;
+        try {
+            result = client.load("localhost", server.port(), seconds);
+        } finally {
+            sampler.finish();
+            server.stop();
+        }
+
+        LatencyHistogram h = result.getCorrected();
+        System.out.printf("%s\t%d\t%d\t%.0f\t%.1f\t%.1f\t%.1f\t%d\t%.0f\t%.1f%s%n", model, connections, size,
+                result.getThroughput(), h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0,
+                sampler.getPeakThreads(), sampler.getPeakRss() / 1024.0, sampler.getAllocationRate() / 1048576.0,
+                result.getErrors() + result.getFailed() > 0
+                        ? "\t(failed=" + result.getFailed() + " errors=" + result.getErrors() + ")" : "");
+    }
+}
@@ -0,0 +1,150 @@
+package com.zbq.io.benchmark;
+
+import com.zbq.io.aio.AIOEchoServer;
+import com.zbq.io.bio.MultiThreadEchoServer;
+import com.zbq.io.nio.NIOEchoServer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 参与对比的服务器模型，每个都在当前进程中以系统分配的端口启动
+ *
+ * BIO：每个连接一个平台线程，按字节回显
+ * BIO_VIRTUAL：每个连接一个虚拟线程，需要JDK 21
+ * NIO：单Reactor，处理器在Reactor线程中执行（INLINE）
+ * NIO_MULTI：主从Reactor，worker数为CPU核数，INLINE
+ * AIO：固定大小（CPU核数）的通道组，在完成线程中直接处理
+ */
+public enum ServerModel {
+
+    BIO {
+        @Override
+        RunningServer start() throws IOException {
+            return startBio(MultiThreadEchoServer.ThreadMode.PLATFORM);
+        }
+    },
+    BIO_VIRTUAL {
+        @Override
+        RunningServer start() throws IOException {
+            return startBio(MultiThreadEchoServer.ThreadMode.VIRTUAL);
+        }
+    },
+    NIO {
+        @Override
+        RunningServer start() throws IOException {
+            return startNio(0);
+        }
+    },
+    NIO_MULTI {
+        @Override
+        RunningServer start() throws IOException {
+            return startNio(Runtime.getRuntime().availableProcessors());
+        }
+    },
+    AIO {
+        @Override
+        RunningServer start() throws IOException {
+            final AIOEchoServer server = new AIOEchoServer(0, AIOEchoServer.GroupType.FIXED,
+                    Runtime.getRuntime().availableProcessors());
+            server.start();
+            return new RunningServer() {
+                @Override
+                public int port() {
+                    return server.getLocalPort();
+                }
+
+                @Override
+                public void stop() throws Exception {
+                    server.shutdown();
+                }
+            };
+        }
+    };
+
+    /**
+     * 启动服务器，返回后就可以接受连接了
+     */
+    abstract RunningServer start() throws IOException;
+
+    /**
+     * 一个已经启动的服务器
+     */
+    interface RunningServer {
+        int port();
+
+        /**
+         * 关闭服务器并等待它的线程退出
+         */
+        void stop() throws Exception;
+    }
+
+    private static RunningServer startBio(MultiThreadEchoServer.ThreadMode mode) throws IOException {
+        final MultiThreadEchoServer server = new MultiThreadEchoServer(0, mode);
+        server.setQuiet(true);
+        server.bind();
+        final Thread acceptor = startThread("bio-acceptor", new Task() {
+            @Override
+            public void run() throws Exception {
+                server.startServer();
+            }
+        });
+        return new RunningServer() {
+            @Override
+            public int port() {
+                return server.getLocalPort();
+            }
+
+            @Override
+            public void stop() throws Exception {
+                server.shutdown();
+                acceptor.join();
+                server.awaitTermination(30, TimeUnit.SECONDS);
+            }
+        };
+    }
+
+    private static RunningServer startNio(int workers) throws IOException {
+        final NIOEchoServer server = new NIOEchoServer("localhost", 0, workers, NIOEchoServer.BalanceStrategy.ROUND_ROBIN);
+        server.setExecutionMode(NIOEchoServer.ExecutionMode.INLINE, 1, 1);
+        server.setQuiet(true);
+        server.bind();
+        final Thread boss = startThread("nio-boss", new Task() {
+            @Override
+            public void run() throws Exception {
+                server.startServer();
+            }
+        });
+        return new RunningServer() {
+            @Override
+            public int port() {
+                return server.getLocalPort();
+            }
+
+            @Override
+            public void stop() throws Exception {
+                server.shutdown();
+                boss.join();
+            }
+        };
+    }
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private static Thread startThread(String name, final Task task) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, name);
+        t.start();
+        return t;
+    }
+}
@@ -0,0 +1,310 @@
+package com.zbq.io.bio;
+
+import com.zbq.metrics.LatencyRecorder;
+import com.zbq.metrics.MetricRegistry;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 有界的连接处理线程池，带准入控制
+ *
+ * BIO服务器中一个连接在整个生命周期里占用一个线程，无界的线程池在连接风暴时会不断创建线程直到内存耗尽。
+ * 这里最多maxThreads个线程同时处理连接，其余的连接最多queueCapacity个在队列中等待，
+ * 两者都满了时按照RejectionPolicy处理新连接：
+ * 1.REJECT：直接关闭新连接；
+ * 2.CLOSE_OLDEST_IDLE：关闭最长时间没有收到数据的连接，腾出一个线程给队列中的连接，新连接进入队列；
+ *   这个连接空闲的时间不超过minIdle（默认1秒）时说明所有连接都在活跃地收发数据，不关闭任何连接，拒绝新连接；
+ * 3.CALLER_RUNS：由接受连接的线程自己处理新连接，处理完之前不再接受新连接，多出来的连接留在系统的监听队列中。
+ *
+ * submit()可能被多个接受连接的线程同时调用（SO_REUSEPORT时每个监听套接字一个），因此在inFlight上用CAS预留名额，
+ * 判断和占用是一步完成的，并发提交也不会超过maxThreads + queueCapacity；
+ * 只有CLOSE_OLDEST_IDLE关闭了一个空闲连接时，新连接直接占用名额，在被关闭连接的线程退出之前会暂时多出一个。
+ * maxThreads、queueCapacity和policy都可以在运行时修改：队列本身是无界的，容量由submit()检查，
+ * 修改后对之后接受的连接生效，已经在队列中的连接不受影响。
+ * 统计接受、排队、拒绝、关闭空闲连接和由接受线程处理的次数，以及每个连接在队列中等待的时间。
+ */
+public class BoundedConnectionExecutor {
+
+    /**
+     * 线程和队列都满了时对新连接的处理
+     */
+    public enum RejectionPolicy {
+        REJECT, CLOSE_OLDEST_IDLE, CALLER_RUNS
+    }
+
+    /**
+     * 被执行的连接处理器，需要报告最近一次收到数据的时间，以便找出最空闲的连接
+     */
+    interface ConnectionHandler extends Runnable {
+        Socket socket();
+
+        /**
+         * 最近一次收到数据的时间（System.nanoTime()）
+         */
+        long lastActive();
+    }
+
+    private final ThreadPoolExecutor pool;
+    private volatile int maxThreads;
+    private volatile int queueCapacity;
+    private volatile RejectionPolicy policy;
+    //CLOSE_OLDEST_IDLE只关闭空闲超过这个时间的连接
+    private volatile long minIdleNanos = TimeUnit.SECONDS.toNanos(1);
+    //正在被处理的连接，包括由接受线程处理的
+    private final Set<ConnectionHandler> active = ConcurrentHashMap.newKeySet();
+    //已经交给线程池、还没有处理完的连接数（正在处理的加上在队列中的）
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder closedIdle = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private final LatencyRecorder queueWait = new LatencyRecorder("bio.queueWait");
+
+    public BoundedConnectionExecutor(int maxThreads, int queueCapacity, RejectionPolicy policy) {
+        checkLimits(maxThreads, queueCapacity);
+        this.maxThreads = maxThreads;
+        this.queueCapacity = queueCapacity;
+        this.policy = policy;
+        this.pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "bio-worker-" + n.getAndIncrement());
+            }
+        });
+        //空闲的线程超时后退出，连接少的时候不保留maxThreads个线程
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    private static void checkLimits(int maxThreads, int queueCapacity) {
+        if (maxThreads <= 0 || queueCapacity < 0) {
+            throw new IllegalArgumentException("maxThreads=" + maxThreads + ", queueCapacity=" + queueCapacity);
+        }
+    }
+
+    /**
+     * 提交一个新连接，可以由多个接受连接的线程同时调用
+     */
+    void submit(final ConnectionHandler handler) {
+        accepted.increment();
+        boolean busy;
+        for (; ; ) {
+            int n = inFlight.get();
+            int max = maxThreads;
+            busy = n >= max;
+            if (busy && n - max >= queueCapacity) {
+                switch (policy) {
+                    case CALLER_RUNS:
+                        callerRuns.increment();
+                        runTracked(handler);
+                        return;
+                    case CLOSE_OLDEST_IDLE:
+                        if (!closeOldestIdle()) {
+                            //没有空闲足够久的连接，只能拒绝
+                            reject(handler);
+                            return;
+                        }
+                        //腾出的名额留给这个连接
+                        inFlight.incrementAndGet();
+                        break;
+                    default:
+                        reject(handler);
+                        return;
+                }
+                break;
+            }
+            //预留名额，失败说明其它接受线程同时提交了连接，重新判断
+            if (inFlight.compareAndSet(n, n + 1)) {
+                break;
+            }
+        }
+        if (busy) {
+            queued.increment();
+        }
+        final long enqueued = System.nanoTime();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                queueWait.recordSince(enqueued);
+                try {
+                    runTracked(handler);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void reject(ConnectionHandler handler) {
+        rejected.increment();
+        closeQuietly(handler.socket());
+    }
+
+    private void runTracked(ConnectionHandler handler) {
+        active.add(handler);
+        try {
+            handler.run();
+        } finally {
+            active.remove(handler);
+        }
+    }
+
+    /**
+     * 关闭最近一次收到数据最早的连接，它的线程从阻塞的读中返回后会去处理队列中的连接。
+     * 这个连接空闲的时间不超过minIdle时不关闭，返回false
+     */
+    private boolean closeOldestIdle() {
+        ConnectionHandler oldest;
+        do {
+            oldest = null;
+            for (ConnectionHandler h : active) {
+                if (oldest == null || h.lastActive() - oldest.lastActive() < 0) {
+                    oldest = h;
+                }
+            }
+            if (oldest == null || System.nanoTime() - oldest.lastActive() <= minIdleNanos) {
+                return false;
+            }
+            //避免之后再次选中它；删除失败说明另一个接受线程同时选中了它，重新选择
+        } while (!active.remove(oldest));
+        closedIdle.increment();
+        closeQuietly(oldest.socket());
+        return true;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+
+    /**
+     * 运行时修改线程数上限，减少时多出来的线程在处理完当前连接后退出
+     */
+    public void setMaxThreads(int maxThreads) {
+        checkLimits(maxThreads, queueCapacity);
+        //ThreadPoolExecutor要求任何时候core <= max，因此增加时先改max，减少时先改core
+        if (maxThreads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(maxThreads);
+            pool.setCorePoolSize(maxThreads);
+        } else {
+            pool.setCorePoolSize(maxThreads);
+            pool.setMaximumPoolSize(maxThreads);
+        }
+        this.maxThreads = maxThreads;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        checkLimits(maxThreads, queueCapacity);
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setPolicy(RejectionPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * CLOSE_OLDEST_IDLE时连接至少空闲多久才可以被关闭
+     */
+    public void setMinIdle(long time, TimeUnit unit) {
+        if (time < 0) {
+            throw new IllegalArgumentException("minIdle=" + time);
+        }
+        this.minIdleNanos = unit.toNanos(time);
+    }
+
+    public long getMinIdle(TimeUnit unit) {
+        return unit.convert(minIdleNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public RejectionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * 正在处理的连接数
+     */
+    public int getActive() {
+        return active.size();
+    }
+
+    /**
+     * 在队列中等待的连接数
+     */
+    public int getQueueSize() {
+        return Math.max(0, inFlight.get() - maxThreads);
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * 提交时所有线程都忙、需要排队的连接数
+     */
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getClosedIdle() {
+        return closedIdle.sum();
+    }
+
+    public long getCallerRuns() {
+        return callerRuns.sum();
+    }
+
+    /**
+     * 连接在队列中等待的时间
+     */
+    public LatencyRecorder getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * 把准入控制的计数和线程池的状态注册到registry中，名字以prefix开头
+     */
+    public void registerMetrics(MetricRegistry registry, String prefix) {
+        registry.gauge(prefix + ".active", this::getActive);
+        registry.gauge(prefix + ".queueSize", this::getQueueSize);
+        registry.gauge(prefix + ".queued", this::getQueued);
+        registry.gauge(prefix + ".rejected", this::getRejected);
+        registry.gauge(prefix + ".closedIdle", this::getClosedIdle);
+        registry.gauge(prefix + ".callerRuns", this::getCallerRuns);
+        registry.monitor(prefix + ".pool", pool);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+}
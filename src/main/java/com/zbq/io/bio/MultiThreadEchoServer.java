@@ -1,13 +1,25 @@
 package com.zbq.io.bio;
 
+import com.zbq.metrics.LatencyRecorder;
+import com.zbq.metrics.LatencyReporter;
+import com.zbq.metrics.Meter;
+import com.zbq.metrics.MetricRegistry;
+
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by zhangboqing on 2017/6/5.
@@ -18,19 +30,81 @@ import java.util.concurrent.Executors;
  * 它的特点是，在相同可支持的线程范围内，可以尽量多地支持客户端的数量，同时和单线程服务器相比，它也可以更好地使用多核CPU。
  *
  * 存在的问题：这种模式的一个重大弱点——那就是它倾向于让CPU进行IO等待
+ *
+ * ThreadMode.VIRTUAL时每个连接使用一个虚拟线程（JDK 21）：处理代码还是同样简单的阻塞读写，
+ * 但虚拟线程阻塞时只是把很小的栈保存在堆上，不占用操作系统线程，因此可以同时保持几万个连接。
+ *
+ * EchoMode.RAW（默认）时原样回显字节，不做字符集的解码和编码，读到的数据在输入读空之后才一次性写出；
+ * EchoMode.TEXT时按行解码成String再写回，供需要处理文本的场景使用。
+ *
+ * setListeners(n)（n大于1，Linux 3.9以上）时用SO_REUSEPORT在同一个端口上打开n个ServerSocket，
+ * 每个由自己的派发线程accept，内核把新连接分散到各个监听套接字上，连接风暴时不再只有一个派发线程。
  */
 public class MultiThreadEchoServer {
 
-    private static ExecutorService tp = Executors.newCachedThreadPool();
+    /**
+     * 处理连接的线程
+     * PLATFORM：每个连接一个平台线程（newCachedThreadPool）
+     * VIRTUAL：每个连接一个虚拟线程，需要在JDK 21及以上运行
+     */
+    public enum ThreadMode {
+        PLATFORM, VIRTUAL
+    }
+
+    /**
+     * 回显方式
+     * RAW：按字节回显，使用RawHandleMsg
+     * TEXT：按行解码后回显，使用HandleMsg
+     */
+    public enum EchoMode {
+        RAW, TEXT
+    }
+
+    //RAW模式下每个连接的缓冲区大小
+    static final int BUFFER_SIZE = 8192;
+
+    public static final int PORT = 8000;
+    private final int port;
+    private final ThreadMode threadMode;
+    private final ExecutorService tp;
+    //不为null时由它代替tp处理连接
+    private BoundedConnectionExecutor admission;
+    private ServerSocket echoServer;
+    //监听套接字的个数，大于1时使用SO_REUSEPORT；echoServers[0]就是echoServer
+    private int listenerCount = 1;
+    private ServerSocket[] echoServers;
+    private LongAdder[] accepted;
+    private volatile boolean running;
+    private volatile boolean quiet;
+    private EchoMode echoMode = EchoMode.RAW;
+    //记录每一次从读到到写回的耗时，所有连接共用，处理线程按哈希分散写固定数量的直方图。
+    //虚拟线程模式下几万个线程写同一个recorder，占用的内存也是固定的，不随连接数增长
+    private final LatencyRecorder latency = new LatencyRecorder("bio");
+    //指标，main()中交给LatencyReporter定时输出
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final Meter accepts = metrics.meter("bio.accepts");
 
-    static class HandleMsg implements Runnable {
+    static class HandleMsg implements BoundedConnectionExecutor.ConnectionHandler {
         Socket clientSocket;
+        final LatencyRecorder latency;
+        volatile long lastActive = System.nanoTime();
 
-        public HandleMsg(Socket clientSocket) {
+        public HandleMsg(Socket clientSocket, LatencyRecorder latency) {
             this.clientSocket = clientSocket;
+            this.latency = latency;
 
         }
 
+        @Override
+        public Socket socket() {
+            return clientSocket;
+        }
+
+        @Override
+        public long lastActive() {
+            return lastActive;
+        }
+
         public void run() {
             BufferedReader is = null;
             PrintWriter os = null;
@@ -39,16 +113,19 @@ public class MultiThreadEchoServer {
                 os = new PrintWriter(clientSocket.getOutputStream(), true);
                 // 从InputStream当中读取客户端所发送的数据
                 String inputLine = null;
-                long b = System.currentTimeMillis();
                 while ((inputLine = is.readLine()) != null) {
+                    long b = System.nanoTime();
+                    lastActive = b;
                     os.println(inputLine);
+                    latency.recordSince(b);
 
                 }
-                long e = System.currentTimeMillis();
-                System.out.println("spend:" + (e - b) + "ms");
 
             } catch (IOException e) {
-                e.printStackTrace();
+                //被准入控制关闭的空闲连接不需要打印
+                if (!clientSocket.isClosed()) {
+                    e.printStackTrace();
+                }
 
             } finally {
                 try {
@@ -64,27 +141,305 @@ public class MultiThreadEchoServer {
         }
     }
 
-    public static void main(String args[]) {
-        ServerSocket echoServer = null;
-        Socket clientSocket = null;
+    /**
+     * 按字节回显，每个连接一个可以重复使用的byte[]
+     *
+     * 读到的数据追加在缓冲区中，只要输入流中还有立即可读的数据（available() > 0）并且缓冲区没有满，就继续读，
+     * 输入读空之后才调用一次write()写出全部数据。客户端连续发来多条消息时，多次读只对应一次写（一次系统调用），
+     * 也没有String和字符集转换。
+     */
+    static class RawHandleMsg implements BoundedConnectionExecutor.ConnectionHandler {
+        final Socket clientSocket;
+        final LatencyRecorder latency;
+        volatile long lastActive = System.nanoTime();
+
+        RawHandleMsg(Socket clientSocket, LatencyRecorder latency) {
+            this.clientSocket = clientSocket;
+            this.latency = latency;
+        }
+
+        @Override
+        public Socket socket() {
+            return clientSocket;
+        }
+
+        @Override
+        public long lastActive() {
+            return lastActive;
+        }
+
+        @Override
+        public void run() {
+            byte[] buf = new byte[BUFFER_SIZE];
+            try (Socket socket = clientSocket) {
+                InputStream is = socket.getInputStream();
+                OutputStream os = socket.getOutputStream();
+                int len = 0;
+                long b = 0;
+                for (; ; ) {
+                    int n = is.read(buf, len, buf.length - len);
+                    if (n < 0) {
+                        break;
+                    }
+                    if (len == 0) {
+                        b = System.nanoTime();
+                        lastActive = b;
+                    }
+                    len += n;
+                    if (len < buf.length && is.available() > 0) {
+                        //还有数据没有读，先不写
+                        continue;
+                    }
+                    os.write(buf, 0, len);
+                    latency.recordSince(b);
+                    len = 0;
+                }
+            } catch (IOException e) {
+                //被准入控制关闭的空闲连接不需要打印
+                if (!clientSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param port       监听端口，为0时由系统分配，可通过getLocalPort()获取
+     * @param threadMode 处理连接的线程
+     */
+    public MultiThreadEchoServer(int port, ThreadMode threadMode) {
+        this.port = port;
+        this.threadMode = threadMode;
+        this.tp = threadMode == ThreadMode.VIRTUAL ? newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+        //虚拟线程的executor不是线程池，没有可以监控的状态
+        if (tp instanceof ThreadPoolExecutor) {
+            metrics.monitor("bio.pool", (ThreadPoolExecutor) tp);
+        }
+    }
+
+    /**
+     * 通过反射调用Executors.newVirtualThreadPerTaskExecutor()，这样在JDK 17上也可以编译和使用PLATFORM模式
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
         try {
-            echoServer = new ServerSocket(8000);
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads require JDK 21+, running on " + System.getProperty("java.version"), e);
+        }
+    }
 
-        } catch (IOException e) {
-            System.out.println(e);
+    /**
+     * 绑定端口，返回后就可以接受客户端连接了（连接会在startServer()中被处理）
+     */
+    public synchronized void bind() throws IOException {
+        if (echoServer != null) {
+            return;
+        }
+        echoServers = new ServerSocket[listenerCount];
+        accepted = new LongAdder[listenerCount];
+        for (int i = 0; i < listenerCount; i++) {
+            ServerSocket listener = new ServerSocket();
+            echoServers[i] = listener;
+            accepted[i] = new LongAdder();
+            metrics.gauge("bio.listener" + i + ".accepted", accepted[i]::sum);
+            if (listenerCount > 1) {
+                if (!listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+                }
+                //所有监听套接字都必须在bind之前设置SO_REUSEPORT
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            //端口为0时后面的监听套接字绑定到第一个分配到的端口上
+            listener.bind(new InetSocketAddress(i == 0 ? port : echoServers[0].getLocalPort()), 1024);
+        }
+        echoServer = echoServers[0];
+        running = true;
+    }
 
+    /**
+     * 在当前线程中接受连接，直到shutdown()被调用；有多个监听套接字时，其它的各自在一个派发线程中接受连接
+     */
+    public void startServer() throws IOException {
+        bind();
+        for (int i = 1; i < echoServers.length; i++) {
+            final int listener = i;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    acceptLoop(listener);
+                }
+            }, "bio-acceptor-" + i);
+            t.setDaemon(true);
+            t.start();
         }
-        while (true) {
-            try {
-                clientSocket = echoServer.accept();
-                System.out.println(clientSocket.getRemoteSocketAddress() + " connect!");
-                tp.execute(new HandleMsg(clientSocket));
+        acceptLoop(0);
+    }
 
+    private void acceptLoop(int listener) {
+        ServerSocket serverSocket = echoServers[listener];
+        while (running) {
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+                accepted[listener].increment();
+                accepts.mark();
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println(e);
+                    continue;
+                }
+                break;
+            }
+            try {
+                //回显可能分成多次写出，关闭Nagle算法，避免和客户端的延迟确认叠加出几十毫秒的停顿
+                clientSocket.setTcpNoDelay(true);
             } catch (IOException e) {
-                System.out.println(e);
+                //ignore
+            }
+            if (!quiet) {
+                System.out.println(clientSocket.getRemoteSocketAddress() + " connect!");
+            }
+            BoundedConnectionExecutor.ConnectionHandler handler = echoMode == EchoMode.RAW
+                    ? new RawHandleMsg(clientSocket, latency) : new HandleMsg(clientSocket, latency);
+            if (admission != null) {
+                admission.submit(handler);
+            } else {
+                tp.execute(handler);
+            }
+        }
+    }
 
+    /**
+     * 关闭监听端口，已经建立的连接在客户端关闭后结束
+     */
+    public synchronized void shutdown() throws IOException {
+        running = false;
+        if (echoServers != null) {
+            for (ServerSocket listener : echoServers) {
+                listener.close();
             }
         }
+        tp.shutdown();
+        if (admission != null) {
+            admission.shutdown();
+        }
+    }
+
+    /**
+     * 等待所有连接处理完、线程退出
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean done = tp.awaitTermination(timeout, unit);
+        if (admission != null) {
+            done &= admission.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        return done;
+    }
+
+    /**
+     * 使用有界的线程池和准入控制处理连接，必须在startServer()之前调用。
+     * 返回的executor可以在运行时调整线程数、队列长度和拒绝策略。
+     * 指标以bio.admission开头，不覆盖不限线程数时使用的线程池的bio.pool；重复调用时关闭之前的executor
+     */
+    public BoundedConnectionExecutor setAdmission(int maxThreads, int queueCapacity, BoundedConnectionExecutor.RejectionPolicy policy) {
+        if (admission != null) {
+            admission.shutdown();
+        }
+        admission = new BoundedConnectionExecutor(maxThreads, queueCapacity, policy);
+        admission.registerMetrics(metrics, "bio.admission");
+        return admission;
+    }
+
+    public BoundedConnectionExecutor getAdmission() {
+        return admission;
+    }
+
+    public int getLocalPort() {
+        return echoServer.getLocalPort();
+    }
+
+    /**
+     * 服务器的指标：接受连接的速率、每个监听套接字接受的连接数、线程池和准入控制的状态
+     */
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置监听套接字的个数，大于1时用SO_REUSEPORT在同一个端口上打开多个，必须在bind()之前调用
+     */
+    public void setListeners(int listenerCount) {
+        if (listenerCount <= 0) {
+            throw new IllegalArgumentException("listenerCount <= 0: " + listenerCount);
+        }
+        this.listenerCount = listenerCount;
+    }
+
+    /**
+     * 每个监听套接字接受的连接数
+     */
+    public long[] getAcceptedByListener() {
+        LongAdder[] a = accepted;
+        long[] result = new long[a == null ? 0 : a.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = a[i].sum();
+        }
+        return result;
+    }
+
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * 设置回显方式，必须在startServer()之前调用
+     */
+    public void setEchoMode(EchoMode echoMode) {
+        this.echoMode = echoMode;
+    }
+
+    public EchoMode getEchoMode() {
+        return echoMode;
+    }
+
+    /**
+     * 服务器端每一次回显的耗时
+     */
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    /**
+     * 为true时不打印每一个新连接，压测时使用
+     */
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
+    public static void main(String args[]) throws IOException {
+        //参数：[端口，默认8000] [PLATFORM/VIRTUAL，默认PLATFORM]
+        //-Dbio.maxThreads设置时使用有界线程池，-Dbio.queue为等待队列长度（默认maxThreads），-Dbio.policy为拒绝策略（默认REJECT），
+        //-Dbio.minIdleMs为CLOSE_OLDEST_IDLE时连接至少空闲的毫秒数（默认1000）
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : PORT;
+        ThreadMode mode = args.length > 1 ? ThreadMode.valueOf(args[1]) : ThreadMode.PLATFORM;
+        MultiThreadEchoServer server = new MultiThreadEchoServer(port, mode);
+        //-Dbio.echo=TEXT时按行解码后回显
+        server.setEchoMode(EchoMode.valueOf(System.getProperty("bio.echo", "RAW")));
+        //-Dlisteners=N时用SO_REUSEPORT打开N个监听套接字
+        int listeners = Integer.getInteger("listeners", 1);
+        server.setListeners(listeners);
+        //按照系统属性stat.interval（秒）定时输出延迟分布和服务器的各项指标
+        LatencyReporter reporter = LatencyReporter.startDefault(server.getLatency()).addRegistry(server.getMetrics());
+        Integer maxThreads = Integer.getInteger("bio.maxThreads");
+        if (maxThreads != null) {
+            final BoundedConnectionExecutor admission = server.setAdmission(maxThreads,
+                    Integer.getInteger("bio.queue", maxThreads),
+                    BoundedConnectionExecutor.RejectionPolicy.valueOf(System.getProperty("bio.policy", "REJECT")));
+            admission.setMinIdle(Long.getLong("bio.minIdleMs", 1000), TimeUnit.MILLISECONDS);
+            reporter.add(admission.getQueueWait());
+        }
+        server.startServer();
     }
 
 }
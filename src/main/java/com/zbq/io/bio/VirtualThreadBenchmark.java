@@ -0,0 +1,91 @@
+package com.zbq.io.bio;
+
+import com.zbq.io.benchmark.ProcessSampler;
+import com.zbq.io.nio.NIOEchoClient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MultiThreadEchoServer平台线程和虚拟线程两种模式的对比测试
+ *
+ * 对每一个连接数，分别用两种模式启动服务器，用NIOEchoClient在所有连接上按照固定的总速率（开环）发送请求，
+ * 这样大部分连接在大部分时间里是空闲的，和大量长连接的场景相似。输出：
+ * 1.实际达到的每秒请求数、客户端测得的p99延迟和服务器端回显耗时的p99（微秒）。
+ *   服务器端的耗时记录在服务器共用的LatencyRecorder中，它的直方图个数是固定的，不随连接（线程）数增长，不影响下面的内存统计；
+ * 2.压测期间进程RSS（/proc/self/status中的VmRSS）的峰值减去开始前的值，再除以连接数，即每个连接占用的内存（KB），
+ *   客户端和服务器在同一个进程中，因此也包含了客户端每个连接的开销，两种模式下这部分是相同的；
+ * 3.压测期间平台线程数的峰值，虚拟线程不计入。
+ *
+ * 参数：[连接数列表，默认1000,10000,50000] [每秒请求总数，默认10000] [秒数，默认5] [请求字节数，默认64]
+ * -Daddresses 使用的回环地址个数，默认每20000个连接一个（127.0.0.1、127.0.0.2……），避免用尽本地端口
+ *
+ * 客户端和服务器各占一个文件描述符，N个连接需要ulimit -n大于2N；
+ * 5万个平台线程还可能超过kernel.threads-max和vm.max_map_count，这时服务器会因为无法创建线程而停止接受连接。
+ * VIRTUAL模式需要在JDK 21上运行。
+ */
+public class VirtualThreadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String connectionList = args.length > 0 ? args[0] : "1000,10000,50000";
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 10000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        System.out.println("conns\tmode\tconnected\terrors\treq/s\tp99(us)\tsrvP99(us)\tKB/conn\tthreads");
+        for (String c : connectionList.split(",")) {
+            int connections = Integer.parseInt(c.trim());
+            for (MultiThreadEchoServer.ThreadMode mode : MultiThreadEchoServer.ThreadMode.values()) {
+                try {
+                    run(connections, mode, rate, seconds, size);
+                } catch (UnsupportedOperationException e) {
+                    System.out.println(connections + "\t" + mode + "\t" + e.getMessage());
+                }
+            }
+        }
+    }
+
+    static void run(int connections, MultiThreadEchoServer.ThreadMode mode, double rate, int seconds, int size) throws Exception {
+        final MultiThreadEchoServer server = new MultiThreadEchoServer(0, mode);
+        server.setQuiet(true);
+        server.bind();
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "bio-acceptor");
+        acceptor.start();
+
+        int n = Integer.getInteger("addresses", (connections + 19999) / 20000);
+        InetSocketAddress[] addresses = new InetSocketAddress[n];
+        for (int i = 0; i < n; i++) {
+            addresses[i] = new InetSocketAddress("127.0.0." + (i + 1), server.getLocalPort());
+        }
+
+        System.gc();
+        ProcessSampler sampler = new ProcessSampler();
+        sampler.start();
+
+        NIOEchoClient client = new NIOEchoClient();
+        client.setConnections(connections, Runtime.getRuntime().availableProcessors());
+        client.setPayloadSize(size);
+        client.setOpenLoop(rate);
+        NIOEchoClient.LoadResult result = client.load(addresses, seconds);
+        sampler.finish();
+        server.shutdown();
+        acceptor.join();
+        //等待服务器的线程全部退出，不影响下一轮的线程数和内存
+        server.awaitTermination(30, TimeUnit.SECONDS);
+
+        System.out.printf("%d\t%s\t%d\t%d\t%.0f\t%.1f\t%.1f\t%.1f\t%d%n", connections, mode, result.getConnected(),
+                result.getErrors(), result.getThroughput(), result.getCorrected().percentile(99) / 1000.0,
+                server.getLatency().snapshot().percentile(99) / 1000.0,
+                (sampler.getPeakRss() - sampler.getBaseRss()) / (double) connections, sampler.getPeakThreads());
+    }
+}
@@ -0,0 +1,241 @@
+package com.zbq.io.buffer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 直接内存（direct）ByteBuffer池
+ *
+ * 1.按照大小分级（size class）：512B、1K、2K ... 64K，申请时向上取整到最近的级别，超过最大级别的申请不做池化。
+ * 2.每个线程有自己的缓存（ThreadCache），绝大多数申请和归还都不需要和其它线程竞争；
+ *   线程缓存满了以后再归还到全局的共享队列中，线程缓存为空时也从共享队列中获取。
+ *   只有申请buffer的线程自己归还时才放入线程缓存；在别的线程中归还（例如Reactor线程申请、业务线程池释放）时
+ *   直接放回共享队列，否则buffer会堆积在从不申请的线程的缓存里，申请的线程却只能不断地新分配。
+ * 3.使用直接内存，SocketChannel读写时就不需要再经过一次堆内存到本地内存的隐藏拷贝。
+ * 4.申请得到的是PooledBuffer，使用完后必须显式调用release()归还。
+ *   如果PooledBuffer在没有release()的情况下被GC回收，就认为发生了泄露：
+ *   泄露会被计数，并且底层的直接内存会被重新放回池中。
+ */
+public final class BufferPool {
+
+    /**
+     * 各个服务器默认共享的池
+     */
+    public static final BufferPool DEFAULT = new BufferPool(256, 1024);
+
+    static final int MIN_SIZE_SHIFT = 9;                     //最小级别512字节
+    static final int SIZE_CLASSES = 8;                       //512B ~ 64K
+    public static final int MAX_POOLED_SIZE = 1 << (MIN_SIZE_SHIFT + SIZE_CLASSES - 1);
+
+    private final int threadCacheSize;                       //每个线程每个级别最多缓存的buffer数
+    private final int sharedCacheSize;                       //全局每个级别最多缓存的buffer数
+    private final Queue<ByteBuffer>[] shared;
+    private final AtomicInteger[] sharedCounts;
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+
+    /**
+     * 所有尚未归还的buffer的弱引用。弱引用本身持有底层内存，因此PooledBuffer被回收后还可以把内存找回来
+     */
+    private final Set<LeakRef> live = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<PooledBuffer>();
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final AtomicLong leaked = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int threadCacheSize, int sharedCacheSize) {
+        this.threadCacheSize = threadCacheSize;
+        this.sharedCacheSize = sharedCacheSize;
+        this.shared = (Queue<ByteBuffer>[]) new Queue<?>[SIZE_CLASSES];
+        this.sharedCounts = new AtomicInteger[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            sharedCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * 申请一个容量至少为capacity的buffer，position为0，limit为capacity
+     */
+    public PooledBuffer acquire(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0: " + capacity);
+        }
+        reclaimLeaks();
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer memory = null;
+        if (sizeClass >= 0) {
+            memory = threadCache.get().poll(sizeClass);
+            if (memory == null) {
+                memory = shared[sizeClass].poll();
+                if (memory != null) {
+                    sharedCounts[sizeClass].decrementAndGet();
+                }
+            }
+        }
+        if (memory == null) {
+            memory = ByteBuffer.allocateDirect(sizeClass >= 0 ? sizeOf(sizeClass) : capacity);
+            allocated.increment();
+        }
+        memory.clear();
+        if (sizeClass < 0) {
+            memory.limit(capacity);
+        }
+        PooledBuffer buffer = new PooledBuffer(this, memory);
+        LeakRef ref = new LeakRef(buffer, memory, sizeClass, Thread.currentThread(), leakQueue);
+        buffer.leakRef = ref;
+        live.add(ref);
+        acquired.increment();
+        return buffer;
+    }
+
+    /**
+     * 由PooledBuffer.release()调用
+     */
+    void recycle(PooledBuffer buffer) {
+        LeakRef ref = buffer.leakRef;
+        //清除弱引用，这样它就不会再进入leakQueue
+        ref.clear();
+        live.remove(ref);
+        released.increment();
+        offer(ref.memory, ref.sizeClass, ref.owner == Thread.currentThread());
+    }
+
+    /**
+     * @param local 是否由申请它的线程归还，只有这时才放入当前线程的缓存
+     */
+    private void offer(ByteBuffer memory, int sizeClass, boolean local) {
+        if (sizeClass < 0) {
+            //不池化的大buffer直接交给GC
+            return;
+        }
+        if (local && threadCache.get().offer(sizeClass, memory)) {
+            return;
+        }
+        if (sharedCounts[sizeClass].incrementAndGet() <= sharedCacheSize) {
+            shared[sizeClass].offer(memory);
+        } else {
+            sharedCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * 处理已经被GC回收却没有release()的buffer：计数并找回底层内存
+     */
+    private void reclaimLeaks() {
+        LeakRef ref;
+        while ((ref = (LeakRef) leakQueue.poll()) != null) {
+            if (live.remove(ref)) {
+                leaked.incrementAndGet();
+                offer(ref.memory, ref.sizeClass, false);
+            }
+        }
+    }
+
+    /**
+     * 容量对应的级别，超过最大级别时返回-1
+     */
+    static int sizeClass(int capacity) {
+        if (capacity > MAX_POOLED_SIZE) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return Math.max(0, shift - MIN_SIZE_SHIFT);
+    }
+
+    static int sizeOf(int sizeClass) {
+        return 1 << (sizeClass + MIN_SIZE_SHIFT);
+    }
+
+    /**
+     * 当前被申请出去还没有归还的buffer数（包括已经泄露但还没有被GC发现的）
+     */
+    public long outstanding() {
+        reclaimLeaks();
+        return live.size();
+    }
+
+    /**
+     * 被GC回收时仍未release()的buffer总数
+     */
+    public long leaked() {
+        reclaimLeaks();
+        return leaked.get();
+    }
+
+    public long acquired() {
+        return acquired.sum();
+    }
+
+    public long released() {
+        return released.sum();
+    }
+
+    /**
+     * 实际调用allocateDirect()的次数，池命中率越高，这个值增长得越慢
+     */
+    public long allocated() {
+        return allocated.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[acquired=" + acquired() + ", released=" + released() + ", allocated=" + allocated()
+                + ", outstanding=" + outstanding() + ", leaked=" + leaked() + "]";
+    }
+
+    /**
+     * 每个线程自己的缓存，只会被所属线程访问，因此不需要同步
+     */
+    private final class ThreadCache {
+        @SuppressWarnings("unchecked")
+        private final ArrayDeque<ByteBuffer>[] caches = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[SIZE_CLASSES];
+
+        ByteBuffer poll(int sizeClass) {
+            ArrayDeque<ByteBuffer> cache = caches[sizeClass];
+            return cache == null ? null : cache.pollLast();
+        }
+
+        boolean offer(int sizeClass, ByteBuffer memory) {
+            ArrayDeque<ByteBuffer> cache = caches[sizeClass];
+            if (cache == null) {
+                cache = caches[sizeClass] = new ArrayDeque<ByteBuffer>();
+            }
+            if (cache.size() >= threadCacheSize) {
+                return false;
+            }
+            cache.addLast(memory);
+            return true;
+        }
+    }
+
+    static final class LeakRef extends WeakReference<PooledBuffer> {
+        final ByteBuffer memory;
+        final int sizeClass;
+        //申请这个buffer的线程
+        final Thread owner;
+
+        LeakRef(PooledBuffer referent, ByteBuffer memory, int sizeClass, Thread owner, ReferenceQueue<PooledBuffer> q) {
+            super(referent, q);
+            this.memory = memory;
+            this.sizeClass = sizeClass;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.zbq.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从BufferPool中申请得到的buffer
+ *
+ * 使用者通过buffer()进行读写，使用完后必须调用release()把它归还给池。
+ * buffer带有引用计数，申请时为1：如果有多个使用者共享同一块内存（例如从一个读缓冲区切出来的多个帧），
+ * 每个使用者先retain()，用完后各自release()，计数降为0时才真正归还。
+ * 归还之后就不能再访问buffer()返回的ByteBuffer了，因为它可能已经被其它线程重新申请。
+ */
+public final class PooledBuffer {
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    BufferPool.LeakRef leakRef;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * 增加一个引用，对已经归还的buffer调用会抛出IllegalStateException
+     */
+    public PooledBuffer retain() {
+        for (; ; ) {
+            int cnt = refCnt.get();
+            if (cnt <= 0) {
+                throw new IllegalStateException("buffer already released");
+            }
+            if (refCnt.compareAndSet(cnt, cnt + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 减少一个引用，降为0时把buffer归还给池，对已经归还的buffer调用会抛出IllegalStateException
+     */
+    public void release() {
+        int cnt = refCnt.decrementAndGet();
+        if (cnt == 0) {
+            pool.recycle(this);
+        } else if (cnt < 0) {
+            throw new IllegalStateException("buffer already released");
+        }
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+}
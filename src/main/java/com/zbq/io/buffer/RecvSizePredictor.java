@@ -0,0 +1,93 @@
+package com.zbq.io.buffer;
+
+/**
+ * 自适应的接收缓冲区大小预测，每个连接一个实例，只在读这个连接的线程中使用
+ *
+ * 大小只在BufferPool的级别（512B、1K ... 64K）之间变化，申请时不会再被向上取整：
+ * 1.一次读到的数据达到了预测的大小（把缓冲区读满了），说明内核中可能还有更多数据，下一次扩大两级（4倍），大消息很快就能一次读完；
+ *   调用者只允许读更少的字节时（缓冲区中还有半包，或者受读预算限制），读满了允许的字节数同样算作读满；
+ * 2.连续两次读到的数据都放得进小一级的缓冲区，才缩小一级，避免在两个大小之间来回抖动；
+ * 3.min等于max时就是固定大小，和原来的行为相同。
+ *
+ * 同时统计读的次数，用来计算每个消息平均需要几次读。
+ */
+public final class RecvSizePredictor {
+
+    //扩大时一次跨越的级别数
+    static final int GROW_STEPS = 2;
+
+    private final int minShift;
+    private final int maxShift;
+    private int shift;
+    private boolean shrinkPending;
+    private long reads;
+
+    /**
+     * @param min     最小的缓冲区，向下取整到池的级别，不小于512
+     * @param initial 初始大小
+     * @param max     最大的缓冲区，不超过BufferPool.MAX_POOLED_SIZE，更大的帧由调用者按需单独申请
+     */
+    public RecvSizePredictor(int min, int initial, int max) {
+        if (min <= 0 || initial < min || max < initial) {
+            throw new IllegalArgumentException("min=" + min + ", initial=" + initial + ", max=" + max);
+        }
+        this.minShift = shiftOf(min);
+        this.maxShift = shiftOf(Math.min(max, BufferPool.MAX_POOLED_SIZE));
+        this.shift = Math.max(minShift, Math.min(maxShift, shiftOf(initial)));
+    }
+
+    /**
+     * 固定大小，不随读到的数据变化
+     */
+    public static RecvSizePredictor fixed(int size) {
+        return new RecvSizePredictor(size, size, size);
+    }
+
+    private static int shiftOf(int size) {
+        int shift = 31 - Integer.numberOfLeadingZeros(size);
+        return Math.max(BufferPool.MIN_SIZE_SHIFT, shift);
+    }
+
+    /**
+     * 下一次读应该使用的缓冲区大小
+     */
+    public int nextSize() {
+        return 1 << shift;
+    }
+
+    /**
+     * 记录一次读到的字节数，达到了预测的大小时扩大
+     */
+    public void record(int bytesRead) {
+        record(bytesRead, 1 << shift);
+    }
+
+    /**
+     * 记录一次读到的字节数
+     *
+     * @param requested 这次读最多允许读的字节数，读满了它就扩大，读到的数据少不代表缓冲区太大
+     */
+    public void record(int bytesRead, int requested) {
+        reads++;
+        if (bytesRead >= Math.min(requested, 1 << shift)) {
+            shift = Math.min(maxShift, shift + GROW_STEPS);
+            shrinkPending = false;
+        } else if (shift > minShift && bytesRead <= 1 << (shift - 1)) {
+            if (shrinkPending) {
+                shift--;
+                shrinkPending = false;
+            } else {
+                shrinkPending = true;
+            }
+        } else {
+            shrinkPending = false;
+        }
+    }
+
+    /**
+     * 累计读的次数
+     */
+    public long reads() {
+        return reads;
+    }
+}
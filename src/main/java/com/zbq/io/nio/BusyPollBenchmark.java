@@ -0,0 +1,91 @@
+package com.zbq.io.nio;
+
+import com.zbq.metrics.LatencyHistogram;
+import com.zbq.metrics.LatencyRecorder;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 忙轮询和阻塞select()的往返延迟对比
+ *
+ * 分别用阻塞模式和忙轮询模式启动单Reactor、INLINE的NIOEchoServer，用若干个连接做小消息的ping-pong，
+ * 输出每秒消息数、往返延迟（p50/p99/p999，微秒），以及Reactor线程空转、睡眠和处理事件的时间占比。
+ * 忙轮询只有在Reactor线程独占一个CPU时才有意义：CPU数少于Reactor加客户端线程数时，
+ * 空转会抢走客户端的CPU，这时退避阶梯中的yield和park决定了结果。
+ *
+ * 参数：[连接数，默认1] [每轮秒数，默认5] [消息字节数，默认64] [空转次数，默认100000] [yield次数，默认1000] [最长park（微秒），默认1000]
+ */
+public class BusyPollBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int spins = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+        int yields = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+        long maxParkMicros = args.length > 5 ? Long.parseLong(args[5]) : 1000;
+
+        System.out.println("mode\tmsg/s\tp50(us)\tp99(us)\tp999(us)\tspin%\tpark%\twork%");
+        run("blocking", false, connections, seconds, size, spins, yields, maxParkMicros);
+        run("busy-poll", true, connections, seconds, size, spins, yields, maxParkMicros);
+    }
+
+    static void run(String name, boolean busyPoll, int connections, int seconds, int size,
+                    int spins, int yields, long maxParkMicros) throws Exception {
+        final NIOEchoServer server = new NIOEchoServer("localhost", 0, 0, NIOEchoServer.BalanceStrategy.ROUND_ROBIN);
+        server.setExecutionMode(NIOEchoServer.ExecutionMode.INLINE, 1, 1);
+        if (busyPoll) {
+            server.setBusyPoll(spins, yields, 1000, TimeUnit.MICROSECONDS.toNanos(maxParkMicros));
+        }
+        server.setQuiet(true);
+        server.bind();
+        Thread boss = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "nio-boss");
+        boss.start();
+
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalPort());
+        //预热一秒，不计入结果
+        pingPong(address, connections, size, 1, null);
+        long spin = server.getSpinNanos();
+        long park = server.getParkNanos();
+        long work = server.getWorkNanos();
+        LatencyRecorder latency = new LatencyRecorder("rtt");
+        long start = System.nanoTime();
+        long messages = pingPong(address, connections, size, seconds, latency);
+        long elapsed = System.nanoTime() - start;
+        spin = server.getSpinNanos() - spin;
+        park = server.getParkNanos() - park;
+        work = server.getWorkNanos() - work;
+        server.shutdown();
+        boss.join();
+
+        double total = Math.max(1, spin + park + work);
+        LatencyHistogram h = latency.snapshot();
+        System.out.printf("%s\t%.0f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f%n", name, messages * 1e9 / elapsed,
+                h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0,
+                spin * 100 / total, park * 100 / total, work * 100 / total);
+    }
+
+    private static long pingPong(InetSocketAddress address, int connections, int size, int seconds,
+                                 LatencyRecorder latency) throws InterruptedException {
+        LongAdder messages = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            new Thread(new MultiReactorBenchmark.PingPong(address, size, deadline, messages, latency, done), "bench-client-" + i).start();
+        }
+        done.await();
+        return messages.sum();
+    }
+}
@@ -0,0 +1,71 @@
+package com.zbq.io.nio;
+
+import com.zbq.metrics.LatencyHistogram;
+import com.zbq.metrics.LatencyRecorder;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * INLINE和OFFLOAD两种执行方式的对比测试
+ *
+ * 对每一种消息大小，分别用两种执行方式启动NIOEchoServer，用相同数量的客户端线程进行ping-pong，
+ * 输出每秒回显的消息数、客户端看到的往返延迟（p50/p99，微秒）以及其它线程唤醒Selector的次数。
+ * 小消息时INLINE省去了两次线程切换，延迟更低；消息越大，处理本身的开销越接近，两者的差别越小。
+ *
+ * 参数：[worker数，默认0即单Reactor] [连接数，默认64] [每轮秒数，默认5] [消息字节数列表，默认64,1024,16384,65536]
+ */
+public class ExecutionModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String sizes = args.length > 3 ? args[3] : "64,1024,16384,65536";
+
+        System.out.println("size\tmode\tmsg/s\tp50(us)\tp99(us)\twakeups");
+        for (String s : sizes.split(",")) {
+            int size = Integer.parseInt(s.trim());
+            for (NIOEchoServer.ExecutionMode mode : NIOEchoServer.ExecutionMode.values()) {
+                run(workers, mode, connections, seconds, size);
+            }
+        }
+    }
+
+    static void run(int workers, NIOEchoServer.ExecutionMode mode, int connections, int seconds, int size) throws Exception {
+        final NIOEchoServer server = new NIOEchoServer("localhost", 0, workers, NIOEchoServer.BalanceStrategy.ROUND_ROBIN);
+        server.setExecutionMode(mode, Runtime.getRuntime().availableProcessors(), 1024);
+        server.bind();
+        Thread boss = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "nio-boss");
+        boss.start();
+
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalPort());
+        LongAdder messages = new LongAdder();
+        LatencyRecorder latency = new LatencyRecorder("rtt");
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        CountDownLatch done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            new Thread(new MultiReactorBenchmark.PingPong(address, size, deadline, messages, latency, done), "bench-client-" + i).start();
+        }
+        long start = System.nanoTime();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        long wakeups = server.getWakeups();
+        server.shutdown();
+        boss.join();
+
+        LatencyHistogram h = latency.snapshot();
+        System.out.printf("%d\t%s\t%.0f\t%.1f\t%.1f\t%d%n", size, mode, messages.sum() * 1e9 / elapsed,
+                h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, wakeups);
+    }
+}
@@ -0,0 +1,144 @@
+package com.zbq.io.nio;
+
+import com.zbq.metrics.LatencyHistogram;
+import com.zbq.metrics.LatencyRecorder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 读预算的公平性测试：大流量连接和交互式连接混合
+ *
+ * 对每一种读预算，启动单Reactor、INLINE的NIOEchoServer（所有连接共享一个线程，最容易互相影响），
+ * bulk个大流量连接不停地发送64K的块（另一个线程读走回显），interactive个交互式连接做小消息的ping-pong，
+ * 输出大流量连接的吞吐量、交互式连接的往返延迟（p50/p99/p999，微秒）和每秒消息数，
+ * 交互式连接之间的Jain公平性指数（(Σx)²/(n·Σx²)，x是每个连接完成的消息数，1表示完全公平，1/n表示只有一个连接得到服务），
+ * 以及服务器因为用完预算而让出的次数。预算为max时不限制，每次可读都一直读到内核中没有数据为止。
+ *
+ * 参数：[读预算列表，字节:消息数，默认8192:8,32768:32,max] [大流量连接数，默认2] [交互式连接数，默认8] [每轮秒数，默认5] [交互式消息字节数，默认64]
+ */
+public class FairnessBenchmark {
+
+    static final int BULK_CHUNK = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        String budgets = args.length > 0 ? args[0] : "8192:8,32768:32,max";
+        int bulk = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int interactive = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        int size = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+        System.out.println("budget\tbulk MB/s\tmsg/s\tp50(us)\tp99(us)\tp999(us)\tfairness\texhausted");
+        for (String budget : budgets.split(",")) {
+            budget = budget.trim();
+            int maxBytes = Integer.MAX_VALUE;
+            int maxMessages = Integer.MAX_VALUE;
+            if (!"max".equals(budget)) {
+                String[] parts = budget.split(":");
+                maxBytes = Integer.parseInt(parts[0]);
+                maxMessages = parts.length > 1 ? Integer.parseInt(parts[1]) : Integer.MAX_VALUE;
+            }
+            run(budget, maxBytes, maxMessages, bulk, interactive, seconds, size);
+        }
+    }
+
+    static void run(String name, int maxBytes, int maxMessages, int bulk, int interactive, int seconds, int size) throws Exception {
+        final NIOEchoServer server = new NIOEchoServer("localhost", 0, 0, NIOEchoServer.BalanceStrategy.ROUND_ROBIN);
+        server.setExecutionMode(NIOEchoServer.ExecutionMode.INLINE, 1, 1);
+        server.setReadBudget(maxBytes, maxMessages);
+        server.setQuiet(true);
+        server.bind();
+        Thread boss = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "nio-boss");
+        boss.start();
+
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalPort());
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        LongAdder bulkBytes = new LongAdder();
+        SocketChannel[] bulkChannels = new SocketChannel[bulk];
+        for (int i = 0; i < bulk; i++) {
+            bulkChannels[i] = SocketChannel.open(address);
+            startBulk(bulkChannels[i], deadline, bulkBytes, i);
+        }
+        LatencyRecorder latency = new LatencyRecorder("rtt");
+        LongAdder[] messages = new LongAdder[interactive];
+        CountDownLatch done = new CountDownLatch(interactive);
+        long start = System.nanoTime();
+        for (int i = 0; i < interactive; i++) {
+            messages[i] = new LongAdder();
+            new Thread(new MultiReactorBenchmark.PingPong(address, size, deadline, messages[i], latency, done), "interactive-" + i).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        for (SocketChannel channel : bulkChannels) {
+            channel.close();
+        }
+        long exhausted = server.getBudgetExhausted();
+        server.shutdown();
+        boss.join();
+
+        long total = 0;
+        double sum = 0;
+        double squares = 0;
+        for (LongAdder m : messages) {
+            long x = m.sum();
+            total += x;
+            sum += x;
+            squares += (double) x * x;
+        }
+        double fairness = squares == 0 ? 0 : sum * sum / (interactive * squares);
+        LatencyHistogram h = latency.snapshot();
+        System.out.printf("%s\t%.1f\t%.0f\t%.1f\t%.1f\t%.1f\t%.3f\t%d%n", name, bulkBytes.sum() / 1048576.0 * 1e9 / elapsed,
+                total * 1e9 / elapsed, h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0,
+                fairness, exhausted);
+    }
+
+    /**
+     * 一个线程不停地写出64K的块，另一个线程读走回显并计数，直到deadline
+     */
+    static void startBulk(final SocketChannel channel, final long deadline, final LongAdder bytes, int i) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer out = ByteBuffer.allocateDirect(BULK_CHUNK);
+                try {
+                    while (System.nanoTime() < deadline) {
+                        out.clear();
+                        while (out.hasRemaining()) {
+                            channel.write(out);
+                        }
+                    }
+                } catch (IOException e) {
+                    //连接在测试结束时被关闭
+                }
+            }
+        }, "bulk-writer-" + i).start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer in = ByteBuffer.allocateDirect(BULK_CHUNK);
+                try {
+                    int n;
+                    while ((n = channel.read(in)) >= 0) {
+                        bytes.add(n);
+                        in.clear();
+                    }
+                } catch (IOException e) {
+                    //连接在测试结束时被关闭
+                }
+            }
+        }, "bulk-reader-" + i).start();
+    }
+}
@@ -0,0 +1,153 @@
+package com.zbq.io.nio;
+
+import com.zbq.io.nio.pipeline.FileRegionHandler;
+import com.zbq.io.nio.pipeline.Pipeline;
+import com.zbq.io.nio.pipeline.RawFrameDecoder;
+import com.zbq.io.nio.pipeline.RawFrameEncoder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文件发送的对比测试：FileChannel.transferTo()（零拷贝）和读入直接内存再写出（经过用户空间）
+ *
+ * 服务器使用FileRegionHandler，客户端每发送一个字节，服务器就把整个文件发送回来。
+ * 每种方式先预热一次（把文件读入页缓存），再由connections个客户端同时各请求rounds次，
+ * 输出吞吐量（MB/s）和这段时间内进程消耗的CPU时间（包括客户端，客户端两种方式下的开销相同）。
+ *
+ * 参数：[文件MB数，默认1024] [连接数，默认1] [每个连接请求的次数，默认3]
+ * -Dfile=路径 使用已有的文件，否则在临时目录中创建一个，结束后删除
+ */
+public class FileTransferBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long sizeMb = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        String existing = System.getProperty("file");
+        Path file = existing != null ? Paths.get(existing) : createFile(sizeMb << 20);
+        try {
+            System.out.println("file=" + file + " size=" + Files.size(file));
+            System.out.println("mode\tMB/s\tcpu(ms)");
+            for (boolean zeroCopy : new boolean[]{true, false}) {
+                run(file, zeroCopy, connections, rounds);
+            }
+        } finally {
+            if (existing == null) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    static Path createFile(long size) throws IOException {
+        Path file = Files.createTempFile("file-transfer", ".bin");
+        ByteBuffer block = ByteBuffer.allocateDirect(1 << 20);
+        for (int i = 0; i < block.capacity(); i++) {
+            block.put((byte) i);
+        }
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; ) {
+                block.clear();
+                block.limit((int) Math.min(block.capacity(), size - written));
+                written += fc.write(block);
+            }
+        }
+        return file;
+    }
+
+    static void run(Path file, boolean zeroCopy, int connections, final int rounds) throws Exception {
+        FileRegionHandler handler = new FileRegionHandler(file, zeroCopy);
+        final NIOEchoServer server = new NIOEchoServer("localhost", 0, 0, NIOEchoServer.BalanceStrategy.ROUND_ROBIN);
+        server.setPipeline(new Pipeline(RawFrameDecoder.INSTANCE, handler, RawFrameEncoder.INSTANCE));
+        server.setExecutionMode(NIOEchoServer.ExecutionMode.INLINE, 1, 1);
+        server.bind();
+        Thread boss = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "nio-boss");
+        boss.start();
+
+        final InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalPort());
+        final long size = Files.size(file);
+        //预热
+        fetch(address, size, 1);
+
+        final AtomicLong bytes = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(connections);
+        long cpu = processCpuNanos();
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        bytes.addAndGet(fetch(address, size, rounds));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "file-client-" + i).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        cpu = processCpuNanos() - cpu;
+        server.shutdown();
+        boss.join();
+        handler.close();
+
+        System.out.printf("%s\t%.0f\t%d%n", zeroCopy ? "transferTo" : "buffered",
+                bytes.get() / 1048576.0 * 1e9 / elapsed, cpu / 1000000);
+    }
+
+    /**
+     * 请求rounds次文件，返回收到的字节数
+     */
+    static long fetch(InetSocketAddress address, long size, int rounds) throws IOException {
+        long total = 0;
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            ByteBuffer request = ByteBuffer.allocate(1);
+            ByteBuffer in = ByteBuffer.allocateDirect(256 * 1024);
+            for (int i = 0; i < rounds; i++) {
+                request.clear();
+                channel.write(request);
+                for (long got = 0; got < size; ) {
+                    in.clear();
+                    int n = channel.read(in);
+                    if (n < 0) {
+                        throw new IOException("connection closed after " + got + " bytes");
+                    }
+                    got += n;
+                }
+                total += size;
+            }
+        }
+        return total;
+    }
+
+    static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,127 @@
+package com.zbq.io.nio;
+
+import com.zbq.metrics.LatencyRecorder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 主从Reactor的吞吐量测试
+ *
+ * 在本机回环地址上依次启动worker数量为1到N的NIOEchoServer，
+ * 每一轮使用相同数量的客户端线程进行ping-pong（发送一个消息，等待完整的回显后再发送下一个），
+ * 统计每秒回显的消息数以及相对于1个worker的加速比。
+ * 服务器使用INLINE模式，回显在worker线程中完成，测到的只是worker数量的影响，不受业务线程池的线程切换干扰。
+ * 只有当客户端线程数和CPU核数都足够时，加速比才会接近线性。
+ *
+ * 参数：[最大worker数，默认CPU核数] [连接数，默认64] [每轮秒数，默认5] [消息字节数，默认64]
+ */
+public class MultiReactorBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxWorkers = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        double base = 0;
+        System.out.println("workers\tmsg/s\tspeedup");
+        for (int workers = 1; workers <= maxWorkers; workers++) {
+            double rate = run(workers, connections, seconds, size);
+            if (workers == 1) {
+                base = rate;
+            }
+            System.out.printf("%d\t%.0f\t%.2f%n", workers, rate, rate / base);
+        }
+    }
+
+    /**
+     * 启动一个拥有workers个worker Selector的服务器，返回每秒回显的消息数
+     */
+    static double run(int workers, int connections, int seconds, int size) throws Exception {
+        final NIOEchoServer server = new NIOEchoServer("localhost", 0, workers, NIOEchoServer.BalanceStrategy.ROUND_ROBIN);
+        server.setExecutionMode(NIOEchoServer.ExecutionMode.INLINE, 1, 1);
+        server.bind();
+        Thread boss = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "nio-boss");
+        boss.start();
+
+        final InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalPort());
+        final LongAdder messages = new LongAdder();
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final CountDownLatch done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            new Thread(new PingPong(address, size, deadline, messages, null, done), "bench-client-" + i).start();
+        }
+        long start = System.nanoTime();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        server.shutdown();
+        boss.join();
+        return messages.sum() * 1e9 / elapsed;
+    }
+
+    /**
+     * 一个阻塞的客户端连接：发送size字节，读回size字节，直到deadline。
+     * latency不为null时记录每次往返的耗时
+     */
+    static class PingPong implements Runnable {
+        final InetSocketAddress address;
+        final int size;
+        final long deadline;
+        final LongAdder messages;
+        final LatencyRecorder latency;
+        final CountDownLatch done;
+
+        PingPong(InetSocketAddress address, int size, long deadline, LongAdder messages, LatencyRecorder latency, CountDownLatch done) {
+            this.address = address;
+            this.size = size;
+            this.deadline = deadline;
+            this.messages = messages;
+            this.latency = latency;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try (SocketChannel channel = SocketChannel.open(address)) {
+                channel.socket().setTcpNoDelay(true);
+                ByteBuffer out = ByteBuffer.allocate(size);
+                ByteBuffer in = ByteBuffer.allocate(size);
+                long now;
+                while ((now = System.nanoTime()) < deadline) {
+                    out.clear();
+                    while (out.hasRemaining()) {
+                        channel.write(out);
+                    }
+                    in.clear();
+                    while (in.hasRemaining()) {
+                        if (channel.read(in) < 0) {
+                            return;
+                        }
+                    }
+                    messages.increment();
+                    if (latency != null) {
+                        latency.recordSince(now);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.zbq.io.nio;
+
+import com.zbq.io.buffer.BufferPool;
+import com.zbq.io.buffer.PooledBuffer;
+import com.zbq.metrics.Counter;
+import com.zbq.metrics.LatencyRecorder;
+import com.zbq.metrics.LatencyReporter;
+import com.zbq.metrics.MaxGauge;
+import com.zbq.metrics.Meter;
+import com.zbq.metrics.MetricRegistry;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * UDP回显服务器，和NIOEchoServer一样由一个Selector线程等待-分发事件
+ *
+ * 1.每次可读时连续receive()，最多取batchSize个数据报（直到没有数据为止），每个数据报放在池中申请的直接内存中，
+ *   全部收完之后再依次send()回去，一次唤醒处理一批数据报；
+ * 2.send()返回0说明发送缓冲区满了，剩下的回复留在pending中，只关注OP_WRITE，发完之前不再接收，
+ *   这时新来的数据报在内核的接收缓冲区中排队，满了以后由内核丢弃；
+ * 3.接收缓冲区的大小（SO_RCVBUF）可以配置，突发流量时更大的缓冲区可以减少丢包；
+ * 4.丢包统计：内核因为接收缓冲区满而丢弃的数据报数从/proc/net/udp的drops列读取（只在Linux上有）；
+ *   超过maxDatagramSize被截断的数据报不回显，单独计数。
+ */
+public class NIODatagramEchoServer {
+
+    private final String host;
+    private final int port;
+    private DatagramChannel channel;
+    private Selector selector;
+    private volatile boolean running;
+    private final BufferPool bufferPool = BufferPool.DEFAULT;
+    private int receiveBufferSize;
+    private int batchSize = 64;
+    private int maxDatagramSize = 2048;
+    //已经收到、还没有回复的数据报，只在Selector线程中访问
+    private final ArrayDeque<Reply> pending = new ArrayDeque<Reply>();
+    //指标，main()中交给LatencyReporter定时输出
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final Meter received = metrics.meter("udp.received");
+    private final Counter sent = metrics.counter("udp.sent");
+    private final Counter batches = metrics.counter("udp.batches");
+    private final Counter truncated = metrics.counter("udp.truncated");
+    //一次唤醒收到的最多的数据报个数，达到batchSize说明接收队列里还有积压
+    private final MaxGauge maxBatch = metrics.maxGauge("udp.maxBatch");
+    private final LatencyRecorder latency = new LatencyRecorder("udp");
+
+    /**
+     * 一个等待回复的数据报
+     */
+    static final class Reply {
+        final PooledBuffer buffer;
+        final SocketAddress target;
+        final long startNanos;
+
+        Reply(PooledBuffer buffer, SocketAddress target, long startNanos) {
+            this.buffer = buffer;
+            this.target = target;
+            this.startNanos = startNanos;
+        }
+    }
+
+    /**
+     * @param port 监听端口，为0时由系统分配，可通过getLocalPort()获取
+     */
+    public NIODatagramEchoServer(String host, int port) {
+        this.host = host;
+        this.port = port;
+        metrics.gauge("udp.kernelDrops", this::getKernelDrops);
+    }
+
+    /**
+     * 设置SO_RCVBUF，为0时使用系统默认值，必须在bind()之前调用。
+     * 实际生效的大小受net.core.rmem_max限制，可通过getReceiveBufferSize()查看
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * 每次唤醒最多接收的数据报个数
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize <= 0: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 可以回显的最大数据报，更大的会被截断并丢弃
+     */
+    public void setMaxDatagramSize(int maxDatagramSize) {
+        if (maxDatagramSize <= 0) {
+            throw new IllegalArgumentException("maxDatagramSize <= 0: " + maxDatagramSize);
+        }
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    public synchronized void bind() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        selector = SelectorProvider.provider().openSelector();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        channel.bind(new InetSocketAddress(host, port));
+        channel.register(selector, SelectionKey.OP_READ);
+        running = true;
+    }
+
+    /**
+     * 在当前线程中运行Selector循环，直到shutdown()被调用
+     */
+    public void startServer() throws IOException {
+        bind();
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+                    SelectionKey sk = i.next();
+                    i.remove();
+                    if (sk.isValid() && sk.isReadable()) {
+                        doReceive();
+                    }
+                    if (sk.isValid() && sk.isWritable()) {
+                        doSend(sk);
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            //已经关闭
+        } finally {
+            for (Reply reply : pending) {
+                reply.buffer.release();
+            }
+            pending.clear();
+            channel.close();
+            selector.close();
+        }
+    }
+
+    /**
+     * 连续接收最多batchSize个数据报，再把它们一起回复
+     */
+    private void doReceive() throws IOException {
+        int n = 0;
+        long now = 0;
+        while (n < batchSize) {
+            //多申请一个字节，收到的数据填满了它就说明数据报被截断了
+            PooledBuffer pb = bufferPool.acquire(maxDatagramSize + 1);
+            ByteBuffer bb = pb.buffer();
+            bb.limit(maxDatagramSize + 1);
+            SocketAddress from = channel.receive(bb);
+            if (from == null) {
+                pb.release();
+                break;
+            }
+            n++;
+            if (bb.position() > maxDatagramSize) {
+                truncated.inc();
+                pb.release();
+                continue;
+            }
+            if (now == 0) {
+                now = System.nanoTime();
+            }
+            bb.flip();
+            pending.add(new Reply(pb, from, now));
+        }
+        if (n > 0) {
+            received.mark(n);
+            batches.inc();
+            maxBatch.update(n);
+            doSend(channel.keyFor(selector));
+        }
+    }
+
+    /**
+     * 依次发送pending中的回复，发送缓冲区满时停止接收、等待OP_WRITE
+     */
+    private void doSend(SelectionKey sk) throws IOException {
+        Reply reply;
+        while ((reply = pending.peek()) != null) {
+            if (channel.send(reply.buffer.buffer(), reply.target) == 0) {
+                sk.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            pending.poll();
+            latency.recordSince(reply.startNanos);
+            reply.buffer.release();
+            sent.inc();
+        }
+        if (sk.interestOps() != SelectionKey.OP_READ) {
+            sk.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    public synchronized void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * 实际生效的SO_RCVBUF
+     */
+    public int getReceiveBufferSize() throws IOException {
+        return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    }
+
+    public long getReceived() {
+        return received.getCount();
+    }
+
+    public long getSent() {
+        return sent.getCount();
+    }
+
+    /**
+     * 平均每次唤醒接收的数据报个数
+     */
+    public double getAverageBatch() {
+        long b = batches.getCount();
+        return b == 0 ? 0 : received.getCount() / (double) b;
+    }
+
+    public long getTruncated() {
+        return truncated.getCount();
+    }
+
+    /**
+     * 内核因为接收缓冲区满而丢弃的数据报数，从/proc/net/udp和/proc/net/udp6中按本地端口查找，不是Linux时返回-1
+     */
+    public long getKernelDrops() {
+        String portHex = String.format(":%04X", getLocalPort());
+        long drops = -1;
+        for (String file : new String[]{"/proc/net/udp", "/proc/net/udp6"}) {
+            Path path = Paths.get(file);
+            if (!Files.exists(path)) {
+                continue;
+            }
+            try {
+                List<String> lines = Files.readAllLines(path);
+                for (int i = 1; i < lines.size(); i++) {
+                    String[] cols = lines.get(i).trim().split("\\s+");
+                    //sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ref pointer drops
+                    if (cols.length >= 13 && cols[1].endsWith(portHex)) {
+                        drops = Math.max(drops, 0) + Long.parseLong(cols[12]);
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                //ignore
+            }
+        }
+        return drops;
+    }
+
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    /**
+     * 服务器的指标：收发数和速率、批次、截断和内核丢包数
+     */
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    public static void main(String[] args) throws Exception {
+        //参数：[端口，默认8000]；-Dudp.rcvbuf 接收缓冲区大小，-Dudp.batch 每次唤醒最多接收的数据报个数
+        NIODatagramEchoServer server = new NIODatagramEchoServer("0.0.0.0", args.length > 0 ? Integer.parseInt(args[0]) : 8000);
+        server.setReceiveBufferSize(Integer.getInteger("udp.rcvbuf", 0));
+        server.setBatchSize(Integer.getInteger("udp.batch", 64));
+        server.bind();
+        System.out.println("udp listen on " + server.getLocalPort() + ", SO_RCVBUF=" + server.getReceiveBufferSize());
+        //按照系统属性stat.interval（秒）定时输出延迟分布、收发数和丢包数
+        LatencyReporter.startDefault(server.getLatency()).addRegistry(server.getMetrics());
+        server.startServer();
+    }
+}
@@ -1,36 +1,88 @@
 package com.zbq.io.nio;
 
+import com.zbq.io.buffer.RecvSizePredictor;
+import com.zbq.metrics.LatencyHistogram;
+import com.zbq.metrics.LatencyRecorder;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by zhangboqing on 2017/6/5.
  *
  * nio 客户端
  * 核心的元素也是Selector、Channel和SelectionKey
+ *
+ * 不带参数运行时发送一次"hello server!"；带参数运行时是一个多连接的压测客户端（load()）：
+ * 1.threads个线程各自用一个Selector管理一部分连接，可以支持上万个并发连接（注意ulimit -n）；
+ * 2.开环（OPEN_LOOP）：按照固定的总速率发送请求，不管之前的请求有没有返回，一个连接上可以有多个未完成的请求；
+ *   闭环（CLOSED_LOOP）：每个连接同时只有一个未完成的请求，收到回复后立即发送下一个；
+ * 3.每个请求是payloadSize字节，以'\n'结尾，因此BIO（按行回显）、NIO和AIO服务器都可以使用，收齐同样多的字节就算完成；
+ * 4.协调遗漏（coordinated omission）的修正：开环时延迟从计划发送的时间算起，服务器变慢导致的发送推迟也计入延迟；
+ *   闭环时按照expectedInterval补记被慢请求挡住的请求（见LatencyHistogram.recordCorrected()）。
+ *   同时输出从实际发送时间算起、未修正的延迟，用于对比。
+ * 5.地址可以是InetSocketAddress（TCP），也可以是UnixDomainSocketAddress（Unix域套接字），命令行中用"unix:路径"表示后者。
+ *
+ * 这里的请求没有ID，只能按顺序匹配回复；一个连接上乱序完成的流水线请求见PipelinedEchoClient。
  */
 public class NIOEchoClient {
 
+    /**
+     * 压测模式
+     * OPEN_LOOP：按照固定速率发送
+     * CLOSED_LOOP：固定并发，每个连接收到回复后才发送下一个请求
+     */
+    public enum LoadMode {
+        OPEN_LOOP, CLOSED_LOOP
+    }
+
     private Selector selector;
 
+    //压测参数
+    private int connections = 1;
+    private int threads = 1;
+    private int payloadSize = 64;
+    private LoadMode mode = LoadMode.CLOSED_LOOP;
+    private double rate;
+    private long expectedIntervalNanos;
+    private int warmupSeconds = 1;
+    //连接阶段的超时时间
+    static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    //压测线程共用的读缓冲区大小，也是一个连接一次最多读的字节数
+    static final int LOAD_READ_BUDGET = 64 * 1024;
+
     /**
      * 进行初始化Selector和Channel
      */
     public void init(String ip, int port) throws IOException {
+        init(new InetSocketAddress(ip, port));
+    }
+
+    /**
+     * 连接到TCP或者Unix域套接字地址
+     */
+    public void init(SocketAddress address) throws IOException {
         //创建一个SocketChannel实例，并设置为非阻塞模式
-        SocketChannel channel = SocketChannel.open();
+        SocketChannel channel = open(address);
         channel.configureBlocking(false);
         //创建Selector
         this.selector = SelectorProvider.provider().openSelector();
         //将SocketChannel绑定到Socket上
         //由于当前Channel是非阻塞的，因此，connect()方法返回时，连接并不一定建立成功，在后续使用这个连接时，还需要使用finishConnect()再次确认
-        channel.connect(new InetSocketAddress(ip, port));
+        channel.connect(address);
         //将这个Channel和Selector进行绑定，并注册了感兴趣的事件作为连接（OP_CONNECT）
         channel.register(selector, SelectionKey.OP_CONNECT);
     }
@@ -88,13 +140,556 @@ public class NIOEchoClient {
 
     }
 
+    /**
+     * 设置连接数和使用的线程数，每个线程一个Selector
+     */
+    public void setConnections(int connections, int threads) {
+        if (connections <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("connections=" + connections + ", threads=" + threads);
+        }
+        this.connections = connections;
+        this.threads = Math.min(threads, connections);
+    }
+
+    /**
+     * 每个请求的字节数，最后一个字节是'\n'
+     */
+    public void setPayloadSize(int payloadSize) {
+        if (payloadSize <= 0) {
+            throw new IllegalArgumentException("payloadSize <= 0: " + payloadSize);
+        }
+        this.payloadSize = payloadSize;
+    }
+
+    /**
+     * 开环模式，rate是所有连接每秒发送的请求总数
+     */
+    public void setOpenLoop(double rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate <= 0: " + rate);
+        }
+        this.mode = LoadMode.OPEN_LOOP;
+        this.rate = rate;
+    }
+
+    /**
+     * 闭环模式
+     *
+     * @param expectedIntervalNanos 修正协调遗漏时使用的请求间隔，为0时不修正
+     */
+    public void setClosedLoop(long expectedIntervalNanos) {
+        this.mode = LoadMode.CLOSED_LOOP;
+        this.expectedIntervalNanos = expectedIntervalNanos;
+    }
+
+    /**
+     * 预热时间，这段时间内发出的请求不计入结果
+     */
+    public void setWarmup(int seconds) {
+        this.warmupSeconds = seconds;
+    }
+
+    /**
+     * 对host:port进行压测，预热之后持续seconds秒，返回统计结果
+     */
+    public LoadResult load(String host, int port, int seconds) throws Exception {
+        return load(new InetSocketAddress[]{new InetSocketAddress(host, port)}, seconds);
+    }
+
+    /**
+     * 连接轮流分配给addresses中的地址。
+     * 到同一个目的地址的TCP连接数受本地端口范围（net.ipv4.ip_local_port_range）限制，
+     * 几万个连接时可以让服务器监听所有地址，再使用127.0.0.1、127.0.0.2……多个回环地址；Unix域套接字没有这个限制
+     */
+    public LoadResult load(SocketAddress[] addresses, int seconds) throws Exception {
+        ByteBuffer payload = ByteBuffer.allocateDirect(payloadSize);
+        for (int i = 0; i < payloadSize - 1; i++) {
+            payload.put((byte) ('a' + i % 26));
+        }
+        payload.put((byte) '\n');
+        payload.flip();
+
+        LoadResult result = new LoadResult();
+        CountDownLatch connected = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        LoadWorker[] workers = new LoadWorker[threads];
+        for (int i = 0; i < threads; i++) {
+            //连接平均分给每个线程
+            int n = connections / threads + (i < connections % threads ? 1 : 0);
+            workers[i] = new LoadWorker(addresses, n, payload.asReadOnlyBuffer(), result, connected, go, done);
+            new Thread(workers[i], "load-" + i).start();
+        }
+        connected.await();
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+        for (LoadWorker worker : workers) {
+            worker.setSchedule(start, measureStart, end);
+        }
+        go.countDown();
+        done.await();
+        result.mode = mode;
+        result.targetRate = rate;
+        result.seconds = seconds;
+        result.corrected = result.correctedRecorder.snapshot();
+        result.uncorrected = result.uncorrectedRecorder.snapshot();
+        return result;
+    }
+
+    /**
+     * 压测结果，所有线程共享，结束后由load()填入合并好的直方图
+     */
+    public static class LoadResult {
+        final LongAdder connected = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder sent = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        //所有连接的read()次数和收到的回复数，包括预热阶段
+        final LongAdder reads = new LongAdder();
+        final LongAdder responses = new LongAdder();
+        final LatencyRecorder correctedRecorder = new LatencyRecorder("corrected");
+        final LatencyRecorder uncorrectedRecorder = new LatencyRecorder("uncorrected");
+        LoadMode mode;
+        double targetRate;
+        int seconds;
+        LatencyHistogram corrected;
+        LatencyHistogram uncorrected;
+
+        public long getConnected() {
+            return connected.sum();
+        }
+
+        public long getFailed() {
+            return failed.sum();
+        }
+
+        /**
+         * 压测过程中被服务器断开或者读写出错的连接数
+         */
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * 计入结果（预热之后计划发送）并且完成了的请求数
+         */
+        public long getCompleted() {
+            return completed.sum();
+        }
+
+        public double getThroughput() {
+            return completed.sum() / (double) seconds;
+        }
+
+        /**
+         * 平均每个回复需要的read()次数。压测线程的所有连接共用一个64K的读缓冲区，不为每个连接单独保留内存，
+         * 每个连接一次读多少由自己的RecvSizePredictor决定；
+         * 大于1说明回复比一次能读到的数据大，或者回复在服务器端被分成了多次写出
+         */
+        public double getReadsPerResponse() {
+            long r = responses.sum();
+            return r == 0 ? 0 : reads.sum() / (double) r;
+        }
+
+        /**
+         * 从计划发送的时间算起的延迟（开环），或者补记了被挡住的请求的延迟（闭环）
+         */
+        public LatencyHistogram getCorrected() {
+            return corrected;
+        }
+
+        /**
+         * 从实际发送的时间算起的延迟
+         */
+        public LatencyHistogram getUncorrected() {
+            return uncorrected;
+        }
+
+        public String summary() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("connections=%d failed=%d errors=%d%n", getConnected(), getFailed(), getErrors()));
+            sb.append(String.format("mode=%s target=%s achieved=%.0f req/s sent=%d reads/response=%.2f%n", mode,
+                    mode == LoadMode.OPEN_LOOP ? String.format("%.0f req/s", targetRate) : "-", getThroughput(), sent.sum(),
+                    getReadsPerResponse()));
+            sb.append("corrected:   ").append(corrected.summary()).append(String.format("%n"));
+            sb.append("uncorrected: ").append(uncorrected.summary());
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 一个压测线程：用自己的Selector管理一部分连接
+     *
+     * 开环时这个线程的发送速率是rate*n/connections，发送顺序在连接之间轮转，
+     * 第seq个请求的计划时间是start+seq*interval，由连接seq%n发送，因此找到下一个要发送的连接是O(1)的。
+     */
+    class LoadWorker implements Runnable {
+        final SocketAddress[] addresses;
+        final Conn[] conns;
+        final ByteBuffer payload;
+        final LoadResult result;
+        final CountDownLatch connected;
+        final CountDownLatch go;
+        final CountDownLatch done;
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(LOAD_READ_BUDGET);
+        Selector selector;
+        volatile long start;
+        volatile long measureStart;
+        volatile long end;
+
+        LoadWorker(SocketAddress[] addresses, int n, ByteBuffer payload, LoadResult result,
+                   CountDownLatch connected, CountDownLatch go, CountDownLatch done) {
+            this.addresses = addresses;
+            this.conns = new Conn[n];
+            this.payload = payload;
+            this.result = result;
+            this.connected = connected;
+            this.go = go;
+            this.done = done;
+        }
+
+        void setSchedule(long start, long measureStart, long end) {
+            this.start = start;
+            this.measureStart = measureStart;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = SelectorProvider.provider().openSelector();
+                try {
+                    connectAll();
+                } finally {
+                    connected.countDown();
+                }
+                go.await();
+                loop();
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                for (Conn conn : conns) {
+                    if (conn != null) {
+                        conn.close();
+                    }
+                }
+                try {
+                    if (selector != null) {
+                        selector.close();
+                    }
+                } catch (IOException e) {
+                    //ignore
+                }
+                done.countDown();
+            }
+        }
+
+        /**
+         * 同时发起所有连接，等待它们全部建立或者失败
+         */
+        private void connectAll() throws IOException {
+            int pending = 0;
+            for (int i = 0; i < conns.length; i++) {
+                SocketAddress address = addresses[i % addresses.length];
+                SocketChannel channel = open(address);
+                channel.configureBlocking(false);
+                conns[i] = new Conn(channel, payload.duplicate());
+                try {
+                    if (channel.connect(address)) {
+                        conns[i].key = channel.register(selector, SelectionKey.OP_READ, conns[i]);
+                        result.connected.increment();
+                    } else {
+                        conns[i].key = channel.register(selector, SelectionKey.OP_CONNECT, conns[i]);
+                        pending++;
+                    }
+                } catch (IOException e) {
+                    conns[i].fail();
+                }
+            }
+            long deadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+            while (pending > 0 && System.nanoTime() < deadline) {
+                selector.select(100);
+                Iterator<SelectionKey> ite = selector.selectedKeys().iterator();
+                while (ite.hasNext()) {
+                    SelectionKey key = ite.next();
+                    ite.remove();
+                    if (!key.isValid() || !key.isConnectable()) {
+                        continue;
+                    }
+                    Conn conn = (Conn) key.attachment();
+                    pending--;
+                    try {
+                        ((SocketChannel) key.channel()).finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                        result.connected.increment();
+                    } catch (IOException e) {
+                        conn.fail();
+                    }
+                }
+            }
+            for (Conn conn : conns) {
+                if (!conn.closed && !conn.channel.isConnected()) {
+                    conn.fail();
+                }
+            }
+        }
+
+        private void loop() throws IOException {
+            int n = conns.length;
+            boolean open = mode == LoadMode.OPEN_LOOP;
+            double interval = open ? 1e9 * connections / rate / n : 0;
+            long seq = 0;
+            long nextDue = start;
+            long now;
+            while ((now = System.nanoTime()) < start) {
+                //等待所有线程同时开始
+                Thread.yield();
+            }
+            if (!open) {
+                for (Conn conn : conns) {
+                    conn.schedule(now);
+                }
+            }
+            while ((now = System.nanoTime()) < end) {
+                if (open) {
+                    //落后于计划时每轮最多补发n个，保证读写也能得到处理；计划时间不变，因此延迟照样从计划时间算起
+                    for (int k = 0; k < n && nextDue <= now; k++) {
+                        conns[(int) (seq % n)].schedule(nextDue);
+                        seq++;
+                        nextDue = start + (long) (seq * interval);
+                    }
+                }
+                long timeout = (open ? Math.min(nextDue, end) : end) - now;
+                if (timeout < TimeUnit.MILLISECONDS.toNanos(1)) {
+                    //select()的超时时间只能精确到毫秒，离下一次发送不到1毫秒时不阻塞，没有事件时让出CPU
+                    if (selector.selectNow() == 0) {
+                        Thread.yield();
+                    }
+                } else {
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(timeout));
+                }
+                Iterator<SelectionKey> ite = selector.selectedKeys().iterator();
+                while (ite.hasNext()) {
+                    SelectionKey key = ite.next();
+                    ite.remove();
+                    Conn conn = (Conn) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        conn.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        conn.flush();
+                    }
+                }
+            }
+        }
+
+        /**
+         * 一个连接。请求按照序号排队：[head, writeSeq)已经发出还没有收到回复，[writeSeq, tail)还没有发出。
+         * intended和actual是以序号为下标的环形数组，分别记录每个请求计划发送和实际开始发送的时间
+         */
+        class Conn {
+            final SocketChannel channel;
+            final ByteBuffer out;
+            SelectionKey key;
+            long[] intended = new long[16];
+            long[] actual = new long[16];
+            long head;
+            long writeSeq;
+            long tail;
+            //当前正在发送的请求已经写出的字节数
+            int writeOffset;
+            //已经收到但还不够一个完整回复的字节数
+            int received;
+            boolean closed;
+            //这个连接一次读多少字节，不超过共用的读缓冲区；从一个回复的大小开始
+            final RecvSizePredictor predictor = new RecvSizePredictor(512,
+                    Math.max(512, Math.min(payloadSize, LOAD_READ_BUDGET)), LOAD_READ_BUDGET);
+
+            Conn(SocketChannel channel, ByteBuffer out) {
+                this.channel = channel;
+                this.out = out;
+            }
+
+            /**
+             * 计划在intendedTime发送一个请求，并立即尝试发送
+             */
+            void schedule(long intendedTime) {
+                if (closed) {
+                    return;
+                }
+                if (tail - head == intended.length) {
+                    grow();
+                }
+                intended[(int) (tail & (intended.length - 1))] = intendedTime;
+                tail++;
+                if (writeSeq == tail - 1) {
+                    flush();
+                }
+            }
+
+            private void grow() {
+                int mask = intended.length - 1;
+                long[] ni = new long[intended.length * 2];
+                long[] na = new long[intended.length * 2];
+                for (long s = head; s < tail; s++) {
+                    ni[(int) (s & (ni.length - 1))] = intended[(int) (s & mask)];
+                    na[(int) (s & (na.length - 1))] = actual[(int) (s & mask)];
+                }
+                intended = ni;
+                actual = na;
+            }
+
+            /**
+             * 尽可能多地发送还没有发出的请求，写不下时注册OP_WRITE
+             */
+            void flush() {
+                try {
+                    while (writeSeq < tail) {
+                        if (writeOffset == 0) {
+                            actual[(int) (writeSeq & (actual.length - 1))] = System.nanoTime();
+                        }
+                        out.limit(payloadSize).position(writeOffset);
+                        writeOffset += channel.write(out);
+                        if (writeOffset < payloadSize) {
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        writeOffset = 0;
+                        writeSeq++;
+                        result.sent.increment();
+                    }
+                    if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } catch (IOException e) {
+                    error();
+                }
+            }
+
+            /**
+             * 读取回复，每收齐payloadSize字节完成一个请求。
+             * 只读predictor预测的字节数，和服务器的读预算一样，一个连接一次读不完的数据留到下一轮，不占用同一个线程的其它连接的时间
+             */
+            void read() {
+                int n;
+                try {
+                    readBuffer.clear().limit(predictor.nextSize());
+                    n = channel.read(readBuffer);
+                } catch (IOException e) {
+                    error();
+                    return;
+                }
+                if (n < 0) {
+                    error();
+                    return;
+                }
+                predictor.record(n);
+                received += n;
+                result.reads.increment();
+                long now = System.nanoTime();
+                while (received >= payloadSize && head < writeSeq) {
+                    received -= payloadSize;
+                    result.responses.increment();
+                    int i = (int) (head & (intended.length - 1));
+                    head++;
+                    if (intended[i] >= measureStart && now < end) {
+                        if (mode == LoadMode.OPEN_LOOP) {
+                            result.correctedRecorder.record(now - intended[i]);
+                        } else {
+                            result.correctedRecorder.recordCorrected(now - intended[i], expectedIntervalNanos);
+                        }
+                        result.uncorrectedRecorder.record(now - actual[i]);
+                        result.completed.increment();
+                    }
+                    if (mode == LoadMode.CLOSED_LOOP) {
+                        schedule(now);
+                    }
+                }
+            }
+
+            void fail() {
+                result.failed.increment();
+                close();
+            }
+
+            void error() {
+                result.errors.increment();
+                close();
+            }
+
+            void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * 按照地址的类型打开SocketChannel，TCP连接同时关闭Nagle算法（Unix域套接字不支持TCP选项）
+     */
+    static SocketChannel open(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            return SocketChannel.open(StandardProtocolFamily.UNIX);
+        }
+        SocketChannel channel = SocketChannel.open();
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return channel;
+    }
+
+    /**
+     * host为"unix:路径"时返回Unix域套接字地址（忽略port），否则返回host:port
+     */
+    public static SocketAddress address(String host, int port) {
+        if (host.startsWith("unix:")) {
+            return UnixDomainSocketAddress.of(host.substring("unix:".length()));
+        }
+        return new InetSocketAddress(host, port);
+    }
+
     /**
      * 启动客户端
+     *
+     * 不带参数时发送一次"hello server!"；
+     * 否则进行压测，参数：[host] [port，默认8000] [连接数，默认100] [请求字节数，默认64] [每秒请求数，0表示闭环，默认0] [秒数，默认10]
+     * -Dthreads 压测线程数，默认CPU核数；-Dwarmup 预热秒数，默认1；-Dexpected.interval.us 闭环时修正协调遗漏使用的请求间隔（微秒）
      * @param args
      */
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws Exception {
+        //参数：host port conns payload rate(0为闭环) seconds，host为"unix:路径"时连接Unix域套接字
         NIOEchoClient nioEchoClient = new NIOEchoClient();
-        nioEchoClient.init("localhost",8000);
-        nioEchoClient.working();
+        if (args.length == 0) {
+            nioEchoClient.init("localhost", 8000);
+            nioEchoClient.working();
+            return;
+        }
+        String host = args[0];
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8000;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int payloadSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        double rate = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+
+        nioEchoClient.setConnections(connections, Integer.getInteger("threads", Runtime.getRuntime().availableProcessors()));
+        nioEchoClient.setPayloadSize(payloadSize);
+        if (rate > 0) {
+            nioEchoClient.setOpenLoop(rate);
+        } else {
+            nioEchoClient.setClosedLoop(TimeUnit.MICROSECONDS.toNanos(Long.getLong("expected.interval.us", 0)));
+        }
+        nioEchoClient.setWarmup(Integer.getInteger("warmup", 1));
+        LoadResult result = nioEchoClient.load(new SocketAddress[]{address(host, port)}, seconds);
+        System.out.println(result.summary());
     }
 }
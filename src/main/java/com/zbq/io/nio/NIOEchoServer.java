@@ -1,17 +1,47 @@
 package com.zbq.io.nio;
 
-import java.net.InetAddress;
+import com.zbq.io.buffer.BufferPool;
+import com.zbq.io.buffer.PooledBuffer;
+import com.zbq.io.buffer.RecvSizePredictor;
+import com.zbq.io.nio.pipeline.ChannelContext;
+import com.zbq.io.nio.pipeline.FileRegion;
+import com.zbq.io.nio.pipeline.Pipeline;
+import com.zbq.metrics.Counter;
+import com.zbq.metrics.LatencyRecorder;
+import com.zbq.metrics.LatencyReporter;
+import com.zbq.metrics.MaxGauge;
+import com.zbq.metrics.Meter;
+import com.zbq.metrics.MetricRegistry;
+import com.zbq.metrics.Timer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Files;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by zhangboqing on 2017/6/5.
@@ -19,96 +49,889 @@ import java.util.concurrent.Executors;
  * nio 服务端
  *
  * 作用：Java的NIO可以将网络IO等待时间从业务处理线程中抽取出来。
+ *
+ * 支持两种线程模型：
+ * 1.单Reactor（workerCount为0，默认）：一个Selector、一个线程同时负责accept、read和write。
+ * 2.主从Reactor（workerCount大于0）：boss Selector只负责accept，
+ *   接收到的SocketChannel按照BalanceStrategy分配给workerCount个worker Selector，每个worker Selector独占一个线程负责读写。
+ *
+ * 监听分片（setListeners()，Linux 3.9以上）：用SO_REUSEPORT在同一个端口上打开多个ServerSocketChannel，
+ * 每个监听套接字有自己的accept队列和自己的Reactor线程（第一个就是boss），由内核按照连接的四元组哈希把新连接分散到各个监听套接字上，
+ * 连接风暴时accept不再集中在一个线程、一个队列上。单Reactor模式下每个监听Reactor自己处理它接受的连接，
+ * 主从Reactor模式下所有监听Reactor把连接分配给同一组worker。
+ *
+ * 读到的数据经过Pipeline处理：Reactor线程中用解码器切分出完整的帧，线程池中的业务处理器处理每个帧，
+ * 处理器写出的消息经过编码器放入连接的待发送队列。默认的Pipeline不区分消息边界，原样回显读到的字节。
+ *
+ * 背压：每个连接统计待发送队列中的字节数，超过高水位时停止读这个连接（取消OP_READ），
+ * 降到低水位以下再恢复读，这样发送很快而接收很慢的客户端不会让堆无限增长。
+ *
+ * 业务处理器的执行方式由ExecutionMode决定：
+ * INLINE时在Reactor线程中直接处理，省去了线程切换，适合处理很快的小消息；
+ * OFFLOAD（默认）时交给有界线程池处理，处理结果由Reactor线程在每轮循环中批量发送，
+ * 一轮循环中不管有多少结果到达，最多只唤醒Selector一次。有序的Pipeline在OFFLOAD时经过每个连接自己的任务队列（OrderedTasks），
+ * 同一个连接的帧依次处理，回复顺序和INLINE时一样。
+ *
+ * 忙轮询（setBusyPoll()，默认关闭）：没有就绪的事件时Reactor线程不在select()中睡眠，而是不停地selectNow()，
+ * 空转一段时间后依次退避为Thread.yield()和逐渐变长的LockSupport.parkNanos()，一有事件就回到空转。
+ * 消息到达时线程正在运行，省去了唤醒睡眠线程（futex）和调度的延迟，代价是空闲时也占满一个CPU。
+ * 每个Reactor统计空转（spin）、睡眠（park，包括阻塞在select()中）和处理事件（work）的时间。
  */
 public class NIOEchoServer {
 
     /**
-     * 1.selector用于处理所有的网络连接
-     * 2.线程池tp用于对每一个客户端进行相应的处理，每一个请求都会委托给线程池中的线程进行实际的处理
-     * 3.time_stat它用于统计在某一个Socket上花费的时间，time_stat的key为Socket，value为时间戳（可以记录处理开始时间）。
-     */
-    private Selector selector;
-    private ExecutorService tp = Executors.newCachedThreadPool();
-    public static Map<Socket, Long> time_stat = new HashMap<Socket, Long>(10240);
-
-    /**
-     * 用于启动NIO Server
-     */
-    private void startServer() throws Exception {
-        //通过工厂方法获得一个Selector对象的实例
-        selector = SelectorProvider.provider().openSelector();
-        //获得表示服务端的SocketChannel实例
-        ServerSocketChannel ssc = ServerSocketChannel.open();
-        //将这个SocketChannel设置为非阻塞模式。实际上，Channel也可以像传统的Socket那样按照阻塞的方式工作
-        //但在这里，更倾向于让其工作在非阻塞模式，在这种模式下，我们才可以向Channel注册感兴趣的事件，并且在数据准备好时，得到必要的通知
-        ssc.configureBlocking(false);
-        //将Channel绑定在8000端口。
-        InetSocketAddress isa = new InetSocketAddress(/*InetAddress.getLocalHost()*/"localhost", 8000);
-        ssc.socket().bind(isa);
-        //将ServerSocketChannel绑定到Selector上，并注册它感兴趣的事件为Accept
-        //当Selector发现ServerSocketChannel有新的客户端连接时，就会通知ServerSocketChannel进行处理。
-        //方法register()的返回值是一个SelectionKey，SelectionKey表示一对Selector和Channel的关系。
-        //当Channel注册到Selector上时，就相当于确立了两者的服务关系，那么SelectionKey就是这个契约。
-        //当Selector或者Channel被关闭时，它们对应的SelectionKey就会失效。
-        SelectionKey acceptKey = ssc.register(selector, SelectionKey.OP_ACCEPT);
-        //无穷循环，它的主要任务就是等待-分发网络消息
-        for (; ; ) {
-            //select()方法是一个阻塞方法。如果当前没有任何数据准备好，它就会等待。一旦有数据可读，它就会返回。它的返回值是已经准备就绪的SelectionKey的数量。
-            selector.select();
-            //获取那些准备好的SelectionKey
-            Set readyKeys = selector.selectedKeys();
-            Iterator i = readyKeys.iterator();
-            long e = 0;
-            while (i.hasNext()) {
-                SelectionKey sk = (SelectionKey) i.next();
-                //将这个元素移除！注意，这个非常重要，否则就会重复处理相同的SelectionKey
-                i.remove();
-                //判断当前SelectionKey所代表的Channel是否在Acceptable状态，如果是，就进行客户端的接收（执行doAccept()方法）
-                if (sk.isAcceptable()) {
-                    doAccept(sk);
-                    //判断Channel是否已经可以读了，如果是就进行读取（doRead()方法）
-                } else if (sk.isValid() && sk.isReadable()) {
-                    if (!time_stat.containsKey(((SocketChannel) sk.channel()).socket()))
-                        time_stat.put(((SocketChannel) sk.channel()).socket(), System.currentTimeMillis());
-                    doRead(sk);
-                    //判断通道是否准备好进行写。如果是就进行写入（doWrite()方法），同时在写入完成后，根据读取前的时间戳，输出处理这个Socket连接的耗时。
-                } else if (sk.isValid() && sk.isWritable()) {
+     * 主从Reactor模式下，新连接分配给worker的策略
+     * ROUND_ROBIN：轮询
+     * LEAST_CONNECTIONS：分配给当前连接数最少的worker
+     */
+    public enum BalanceStrategy {
+        ROUND_ROBIN, LEAST_CONNECTIONS
+    }
 
-                    doWrite(sk);
-                    e = System.currentTimeMillis();
-                    long b = time_stat.remove(((SocketChannel) sk.channel()).socket());
-                    System.out.println("spend:" + (e - b) + "ms");
+    /**
+     * 业务处理器的执行方式
+     * INLINE：在Reactor线程中直接执行，处理器不能阻塞
+     * OFFLOAD：交给有界线程池执行，线程池满时退化为在Reactor线程中执行（CallerRunsPolicy），从而对读产生背压
+     */
+    public enum ExecutionMode {
+        INLINE, OFFLOAD
+    }
+
+    /**
+     * 1.boss是持有ServerSocketChannel的Reactor，单Reactor模式下它同时处理所有的网络连接
+     * 2.workers是主从Reactor模式下负责读写的Reactor，每一个都有自己的Selector和线程
+     * 3.线程池tp用于对每一个客户端进行相应的处理，OFFLOAD模式下每一个请求都会委托给线程池中的线程进行实际的处理，
+     *   它的线程数和队列长度都是有界的，在bind()时创建；INLINE模式下不创建线程池
+     * 4.bufferPool是读写使用的直接内存池，读到的数据写回客户端后归还
+     * 5.pipeline是所有连接共享的解码器、业务处理器和编码器
+     * 6.totalQueuedBytes是所有连接待发送的字节数之和，clients是当前所有的连接，用于查看每个连接待发送的字节数
+     * 7.latency用于统计每一份数据从读到到全部写回客户端所花费的时间。
+     *   读到数据时记下时间戳，随数据一起放入待发送队列，写完时记录进直方图。Reactor线程按哈希分散写固定数量的直方图，只有一次原子加
+     */
+    private final SocketAddress address;
+    private final int workerCount;
+    private final BalanceStrategy strategy;
+    private ServerSocketChannel ssc;
+    private Reactor boss;
+    //监听套接字的个数，大于1时使用SO_REUSEPORT；listeners[0]就是ssc，acceptors[0]就是boss
+    private int listenerCount = 1;
+    private ServerSocketChannel[] listeners;
+    private Reactor[] acceptors;
+    private Reactor[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final AtomicLong connectionIds = new AtomicLong();
+    private volatile boolean running;
+    private volatile boolean quiet;
+    //监听队列的长度，实际还受限于net.core.somaxconn
+    static final int BACKLOG = 1024;
+    //一次聚集写最多发送的buffer数
+    static final int MAX_GATHER = 64;
+    //一次唤醒最多接受的连接数
+    static final int MAX_ACCEPTS = 64;
+    //OFFLOAD模式下一个连接连续处理的任务数，超过后让出线程
+    static final int MAX_ORDERED_TASKS = 16;
+    private ExecutionMode executionMode = ExecutionMode.OFFLOAD;
+    private int handlerThreads = Runtime.getRuntime().availableProcessors();
+    private int handlerQueueCapacity = 1024;
+    private ThreadPoolExecutor tp;
+    private final BufferPool bufferPool = BufferPool.DEFAULT;
+    private Pipeline pipeline = Pipeline.rawEcho();
+    //读缓冲区的初始大小
+    static final int READ_BUFFER_SIZE = 8192;
+    //读缓冲区大小的范围，每个连接用RecvSizePredictor根据最近读到的数据量在这个范围内调整
+    private int minReadBuffer = 512;
+    private int initialReadBuffer = READ_BUFFER_SIZE;
+    private int maxReadBuffer = BufferPool.MAX_POOLED_SIZE;
+    //指标，main()中交给LatencyReporter定时输出
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final Counter reads = metrics.counter("nio.reads");
+    private final Meter messages = metrics.meter("nio.messages");
+    private final Meter accepts = metrics.meter("nio.accepts");
+    //一次read()读到的最大字节数
+    private final MaxGauge maxReadBytes = metrics.maxGauge("nio.maxReadBytes");
+    //OFFLOAD模式下从读到数据到线程池开始处理的等待时间
+    private final Timer handlerQueueWait = metrics.timer("nio.handler.queueWait");
+    //读之前读缓冲区至少要保留的空间，不够时才移动或者更换缓冲区
+    static final int MIN_READ_SPACE = 1024;
+    //待发送字节数的低水位和高水位
+    private int lowWaterMark = 32 * 1024;
+    private int highWaterMark = 64 * 1024;
+    private final LongAdder totalQueuedBytes = new LongAdder();
+    private final LongAdder readPauses = new LongAdder();
+    //每个连接每轮循环的读预算
+    private int readBudgetBytes = 32 * 1024;
+    private int readBudgetMessages = 32;
+    private final LongAdder budgetExhausted = new LongAdder();
+    //忙轮询的退避参数：空转spinIterations次，再yield yieldIterations次，之后从minParkNanos开始每次加倍地park，最长maxParkNanos
+    private boolean busyPoll;
+    private int spinIterations;
+    private int yieldIterations;
+    private long minParkNanos;
+    private long maxParkNanos;
+    private final Set<EchoClient> clients = ConcurrentHashMap.newKeySet();
+    private final LatencyRecorder latency = new LatencyRecorder("nio");
+
+    public NIOEchoServer() {
+        this("localhost", 8000, 0, BalanceStrategy.ROUND_ROBIN);
+    }
+
+    /**
+     * @param port        监听端口，为0时由系统分配，可通过getLocalPort()获取
+     * @param workerCount worker Selector的数量，为0时使用单Reactor模式
+     * @param strategy    新连接分配给worker的策略
+     */
+    public NIOEchoServer(String host, int port, int workerCount, BalanceStrategy strategy) {
+        this(new InetSocketAddress(host, port), workerCount, strategy);
+    }
+
+    /**
+     * @param address 监听地址，InetSocketAddress时使用TCP，UnixDomainSocketAddress时使用Unix域套接字。
+     *                同一台机器上的进程之间通信时，Unix域套接字不经过TCP/IP协议栈，没有校验和、拥塞控制和ACK
+     */
+    public NIOEchoServer(SocketAddress address, int workerCount, BalanceStrategy strategy) {
+        if (workerCount < 0) {
+            throw new IllegalArgumentException("workerCount < 0: " + workerCount);
+        }
+        this.address = address;
+        this.workerCount = workerCount;
+        this.strategy = strategy;
+        metrics.gauge("nio.queuedBytes", this::getQueuedBytes);
+        metrics.gauge("nio.maxConnectionQueuedBytes", this::getMaxConnectionQueuedBytes);
+        metrics.gauge("nio.readPauses", this::getReadPauses);
+        metrics.gauge("nio.wakeups", this::getWakeups);
+        metrics.gauge("nio.budgetExhausted", this::getBudgetExhausted);
+        metrics.gauge("nio.readBufferBytes", this::getReadBufferBytes);
+        metrics.gauge("nio.spinMs", () -> getSpinNanos() / 1000000);
+        metrics.gauge("nio.parkMs", () -> getParkNanos() / 1000000);
+        metrics.gauge("nio.workMs", () -> getWorkNanos() / 1000000);
+    }
+
+    /**
+     * 打开Selector并绑定端口，主从Reactor模式下同时启动所有worker线程。
+     * 这个方法返回后就可以接受客户端连接了（连接会在startServer()中被处理）
+     */
+    public synchronized void bind() throws IOException {
+        if (ssc != null) {
+            return;
+        }
+        if (listenerCount > 1 && isUnixDomain()) {
+            throw new IllegalStateException("SO_REUSEPORT is not supported by unix domain sockets");
+        }
+        //Unix域套接字绑定时会创建socket文件，上次没有删除的文件会导致绑定失败
+        if (isUnixDomain()) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+        }
+        listeners = new ServerSocketChannel[listenerCount];
+        acceptors = new Reactor[listenerCount];
+        workers = new Reactor[workerCount];
+        //打开第N个监听套接字或者Selector失败时，关闭已经打开的，不留下占用端口的监听套接字
+        try {
+            for (int i = 0; i < listenerCount; i++) {
+                //通过工厂方法获得一个Selector对象的实例
+                acceptors[i] = new Reactor(i == 0 ? "nio-boss" : "nio-listener-" + i);
+                //获得表示服务端的SocketChannel实例，Unix域套接字需要指定协议族
+                ServerSocketChannel listener = isUnixDomain() ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+                listeners[i] = listener;
+                //将这个SocketChannel设置为非阻塞模式。实际上，Channel也可以像传统的Socket那样按照阻塞的方式工作
+                //但在这里，更倾向于让其工作在非阻塞模式，在这种模式下，我们才可以向Channel注册感兴趣的事件，并且在数据准备好时，得到必要的通知
+                listener.configureBlocking(false);
+                if (listenerCount > 1) {
+                    if (!listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+                    }
+                    //所有监听套接字都必须在bind之前设置SO_REUSEPORT
+                    listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                //将Channel绑定在指定端口，端口为0时后面的监听套接字绑定到第一个分配到的端口上
+                //默认的backlog只有50，压测时成千上万个连接同时建立会溢出，被丢弃的连接在客户端看来已经建立，之后却会被重置
+                listener.bind(i == 0 ? address : listeners[0].getLocalAddress(), BACKLOG);
+                //将ServerSocketChannel绑定到Selector上，并注册它感兴趣的事件为Accept
+                //当Selector发现ServerSocketChannel有新的客户端连接时，就会通知ServerSocketChannel进行处理。
+                //方法register()的返回值是一个SelectionKey，SelectionKey表示一对Selector和Channel的关系。
+                //当Channel注册到Selector上时，就相当于确立了两者的服务关系，那么SelectionKey就是这个契约。
+                //当Selector或者Channel被关闭时，它们对应的SelectionKey就会失效。
+                listener.register(acceptors[i].selector, SelectionKey.OP_ACCEPT);
+            }
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new Reactor("nio-worker-" + i);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeOnBindFailure();
+            throw e;
+        }
+        for (int i = 0; i < listenerCount; i++) {
+            final int index = i;
+            metrics.gauge("nio.listener" + i + ".accepted", () -> acceptors[index].accepted.sum());
+        }
+        ssc = listeners[0];
+        boss = acceptors[0];
+
+        if (executionMode == ExecutionMode.OFFLOAD) {
+            tp = new ThreadPoolExecutor(handlerThreads, handlerThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(handlerQueueCapacity), new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "nio-handler-" + n.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+            metrics.monitor("nio.handler", tp);
+        }
+
+        running = true;
+        for (int i = 0; i < workerCount; i++) {
+            Thread t = new Thread(workers[i], workers[i].name);
+            t.start();
+        }
+        //boss在startServer()的线程中运行，其它监听Reactor各自一个线程
+        for (int i = 1; i < listenerCount; i++) {
+            Thread t = new Thread(acceptors[i], acceptors[i].name);
+            t.start();
+        }
+    }
+
+    /**
+     * bind()中途失败时关闭已经打开的监听套接字和Selector，之后可以重新调用bind()
+     */
+    private void closeOnBindFailure() {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] != null) {
+                closeQuietly(listeners[i]);
+            }
+            if (acceptors[i] != null) {
+                closeQuietly(acceptors[i].selector);
+            }
+        }
+        for (Reactor worker : workers) {
+            if (worker != null) {
+                closeQuietly(worker.selector);
+            }
+        }
+        listeners = null;
+        acceptors = null;
+        workers = null;
+    }
 
+    /**
+     * 用于启动NIO Server，当前线程作为boss Reactor运行，直到shutdown()被调用
+     */
+    public void startServer() throws Exception {
+        bind();
+        boss.run();
+    }
+
+    /**
+     * 关闭监听端口和所有的Selector
+     */
+    public synchronized void shutdown() throws IOException {
+        running = false;
+        if (listeners != null) {
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] != null) {
+                    listeners[i].close();
+                }
+                if (acceptors[i] != null) {
+                    acceptors[i].close();
                 }
             }
         }
+        if (workers != null) {
+            for (Reactor worker : workers) {
+                worker.close();
+            }
+        }
+        if (tp != null) {
+            tp.shutdown();
+        }
+        if (isUnixDomain()) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+        }
     }
 
+    /**
+     * 实际绑定的端口，构造时端口为0时使用；Unix域套接字没有端口，返回-1
+     */
+    public int getLocalPort() {
+        return isUnixDomain() ? -1 : ((InetSocketAddress) getLocalAddress()).getPort();
+    }
+
+    /**
+     * 实际绑定的地址，客户端可以直接用它来连接
+     */
+    public SocketAddress getLocalAddress() {
+        try {
+            return ssc.getLocalAddress();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    boolean isUnixDomain() {
+        return address instanceof UnixDomainSocketAddress;
+    }
+
+    /**
+     * 连接的名字，TCP时为客户端地址；Unix域套接字的客户端通常没有绑定地址，按接受的顺序编号
+     */
+    private String connectionName(SocketChannel channel) {
+        if (isUnixDomain()) {
+            return "unix#" + connectionIds.incrementAndGet();
+        }
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "closed#" + connectionIds.incrementAndGet();
+        }
+    }
+
+    /**
+     * 设置每个连接每轮循环最多读取的字节数和消息数，用完之后让出，下一轮循环继续读。
+     * 预算越小，持续发送的大流量连接对同一个Reactor上其它连接的延迟影响越小，但大流量连接需要更多轮循环
+     */
+    public void setReadBudget(int maxBytes, int maxMessages) {
+        if (maxBytes <= 0 || maxMessages <= 0) {
+            throw new IllegalArgumentException("maxBytes=" + maxBytes + ", maxMessages=" + maxMessages);
+        }
+        this.readBudgetBytes = maxBytes;
+        this.readBudgetMessages = maxMessages;
+    }
+
+    /**
+     * 打开忙轮询模式，必须在bind()之前调用
+     *
+     * @param spinIterations 没有事件时连续selectNow()的次数
+     * @param yieldIterations 空转之后每次selectNow()之前Thread.yield()的次数
+     * @param minParkNanos   之后park的初始时长，每次没有事件时加倍
+     * @param maxParkNanos   park的最长时长，也是深度空闲时新消息的最大额外延迟
+     */
+    public void setBusyPoll(int spinIterations, int yieldIterations, long minParkNanos, long maxParkNanos) {
+        if (spinIterations < 0 || yieldIterations < 0 || minParkNanos <= 0 || maxParkNanos < minParkNanos) {
+            throw new IllegalArgumentException("spinIterations=" + spinIterations + ", yieldIterations=" + yieldIterations
+                    + ", minParkNanos=" + minParkNanos + ", maxParkNanos=" + maxParkNanos);
+        }
+        this.busyPoll = true;
+        this.spinIterations = spinIterations;
+        this.yieldIterations = yieldIterations;
+        this.minParkNanos = minParkNanos;
+        this.maxParkNanos = maxParkNanos;
+    }
+
+    public boolean isBusyPoll() {
+        return busyPoll;
+    }
+
+    /**
+     * 所有Reactor空转（selectNow()没有事件以及yield）的总时间
+     */
+    public long getSpinNanos() {
+        long n = 0;
+        for (Reactor reactor : reactors()) {
+            n += reactor.spinNanos;
+        }
+        return n;
+    }
+
+    /**
+     * 所有Reactor睡眠的总时间：忙轮询时是park的时间，否则是阻塞在select()中的时间
+     */
+    public long getParkNanos() {
+        long n = 0;
+        for (Reactor reactor : reactors()) {
+            n += reactor.parkNanos;
+        }
+        return n;
+    }
+
+    /**
+     * 所有Reactor处理就绪事件和任务的总时间
+     */
+    public long getWorkNanos() {
+        long n = 0;
+        for (Reactor reactor : reactors()) {
+            n += reactor.workNanos;
+        }
+        return n;
+    }
+
+    /**
+     * 所有的监听Reactor和worker
+     */
+    private List<Reactor> reactors() {
+        List<Reactor> result = new ArrayList<Reactor>();
+        if (acceptors != null) {
+            result.addAll(Arrays.asList(acceptors));
+        }
+        if (workers != null) {
+            result.addAll(Arrays.asList(workers));
+        }
+        return result;
+    }
+
+    /**
+     * 设置读缓冲区大小的范围，必须在bind()之前调用。
+     * 每个连接从initial开始，读满时扩大、连续读到的数据很少时缩小；min等于max时使用固定大小。
+     * 实际的上限还不超过读预算（setReadBudget()），见newPredictor()
+     */
+    public void setReadBufferSize(int min, int initial, int max) {
+        if (min <= 0 || initial < min || max < initial) {
+            throw new IllegalArgumentException("min=" + min + ", initial=" + initial + ", max=" + max);
+        }
+        this.minReadBuffer = min;
+        this.initialReadBuffer = initial;
+        this.maxReadBuffer = max;
+    }
+
+    /**
+     * 一个连接的读缓冲区大小预测。一次读最多只读readBudgetBytes，比它大的缓冲区读不满，
+     * 会让预测先扩大又缩小、来回更换缓冲区，因此上限不超过读预算
+     */
+    RecvSizePredictor newPredictor() {
+        int max = Math.min(maxReadBuffer, readBudgetBytes);
+        int min = Math.min(minReadBuffer, max);
+        return new RecvSizePredictor(min, Math.max(min, Math.min(initialReadBuffer, max)), max);
+    }
+
+    /**
+     * 累计的read()次数（读到数据的）
+     */
+    public long getReads() {
+        return reads.getCount();
+    }
+
+    /**
+     * 累计解码出的消息数
+     */
+    public long getMessages() {
+        return messages.getCount();
+    }
+
+    /**
+     * 服务器的指标：消息速率、读次数、待发送字节数、线程池状态等
+     */
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 当前所有连接的读缓冲区占用的内存
+     */
+    public long getReadBufferBytes() {
+        long n = 0;
+        for (EchoClient client : clients) {
+            n += client.inboundCapacity;
+        }
+        return n;
+    }
+
+    /**
+     * 因为用完读预算而让出的次数
+     */
+    public long getBudgetExhausted() {
+        return budgetExhausted.sum();
+    }
+
+    /**
+     * 当前每个连接累计读到的字节数，key为连接的名字
+     */
+    public Map<String, Long> getReadBytesByConnection() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (EchoClient client : clients) {
+            result.put(client.name, client.readBytes);
+        }
+        return result;
+    }
+
+    /**
+     * 设置监听套接字的个数，大于1时用SO_REUSEPORT在同一个端口上打开多个监听套接字，每个有自己的Reactor线程。
+     * 必须在bind()之前调用，只支持TCP，平台不支持SO_REUSEPORT时bind()抛出UnsupportedOperationException
+     */
+    public void setListeners(int listenerCount) {
+        if (listenerCount <= 0) {
+            throw new IllegalArgumentException("listenerCount <= 0: " + listenerCount);
+        }
+        this.listenerCount = listenerCount;
+    }
+
+    /**
+     * 每个监听套接字接受的连接数，反映内核在监听套接字之间分配连接的情况
+     */
+    public long[] getAcceptedByListener() {
+        Reactor[] a = acceptors;
+        long[] result = new long[a == null ? 0 : a.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = a[i].accepted.sum();
+        }
+        return result;
+    }
+
+    /**
+     * 为true时不打印每一个新连接，压测时使用
+     */
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
+    /**
+     * 设置处理流水线，必须在bind()之前调用
+     */
+    public void setPipeline(Pipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * 设置业务处理器的执行方式，必须在bind()之前调用
+     *
+     * @param threads       OFFLOAD模式下线程池的线程数
+     * @param queueCapacity OFFLOAD模式下线程池的队列长度
+     */
+    public void setExecutionMode(ExecutionMode mode, int threads, int queueCapacity) {
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("threads=" + threads + ", queueCapacity=" + queueCapacity);
+        }
+        this.executionMode = mode;
+        this.handlerThreads = threads;
+        this.handlerQueueCapacity = queueCapacity;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * 设置待发送字节数的低水位和高水位，必须在bind()之前调用
+     */
+    public void setWriteBufferWaterMark(int low, int high) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("low=" + low + ", high=" + high);
+        }
+        this.lowWaterMark = low;
+        this.highWaterMark = high;
+    }
+
+    /**
+     * 所有连接待发送的字节数之和
+     */
+    public long getQueuedBytes() {
+        return totalQueuedBytes.sum();
+    }
+
+    /**
+     * 当前每个连接待发送的字节数，key为客户端地址
+     */
+    public Map<String, Long> getQueuedBytesByConnection() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (EchoClient client : clients) {
+            result.put(client.name, client.queuedBytes.get());
+        }
+        return result;
+    }
+
+    /**
+     * 单个连接待发送的字节数的最大值
+     */
+    public long getMaxConnectionQueuedBytes() {
+        long max = 0;
+        for (EchoClient client : clients) {
+            max = Math.max(max, client.queuedBytes.get());
+        }
+        return max;
+    }
+
+    /**
+     * 因为超过高水位而停止读的总次数
+     */
+    public long getReadPauses() {
+        return readPauses.sum();
+    }
+
+    /**
+     * 其它线程唤醒Selector的总次数
+     */
+    public long getWakeups() {
+        long n = 0;
+        for (Reactor reactor : reactors()) {
+            n += reactor.wakeups.sum();
+        }
+        return n;
+    }
+
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * 每个worker当前持有的连接数，单Reactor模式下每个监听Reactor一个元素
+     */
+    public int[] getConnectionCounts() {
+        Reactor[] rs = workerCount == 0 ? acceptors : workers;
+        int[] counts = new int[rs.length];
+        for (int i = 0; i < rs.length; i++) {
+            counts[i] = rs[i].connections.get();
+        }
+        return counts;
+    }
+
+    /**
+     * 选择处理新连接的Reactor，单Reactor模式下就是接受这个连接的监听Reactor自己
+     */
+    private Reactor nextReactor(Reactor acceptor) {
+        if (workerCount == 0) {
+            return acceptor;
+        }
+        if (strategy == BalanceStrategy.LEAST_CONNECTIONS) {
+            Reactor least = workers[0];
+            for (int i = 1; i < workers.length; i++) {
+                if (workers[i].connections.get() < least.connections.get()) {
+                    least = workers[i];
+                }
+            }
+            return least;
+        }
+        return workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    /**
+     * Reactor封装了一个Selector和运行它的线程，负责等待-分发网络消息。
+     *
+     * 其它线程需要Reactor线程做的事情（注册新连接、发送线程池处理的结果）都作为任务放入tasks队列，
+     * Reactor线程在每轮循环处理完就绪的SelectionKey之后一次性执行所有任务。
+     * 由于SocketChannel.register()在Selector阻塞于select()时也会被阻塞，新连接必须由Reactor线程自己注册。
+     *
+     * 唤醒是合并的：wakenUp在每轮循环开始时清零，只有把它从false改为true的那个线程调用Selector.wakeup()，
+     * 所以不管一轮循环中放入了多少任务，wakeup()（一次系统调用）最多只调用一次。
+     * 清零之后再检查tasks，不为空时用selectNow()，清零之后放入的任务一定会触发一次wakeup()，因此任务不会被遗漏。
+     */
+    class Reactor implements Runnable {
+        final String name;
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        final AtomicBoolean wakenUp = new AtomicBoolean();
+        final LongAdder wakeups = new LongAdder();
+        final AtomicInteger connections = new AtomicInteger();
+        //监听Reactor接受的连接数
+        final LongAdder accepted = new LongAdder();
+        //聚集写使用的数组，只在这个Reactor线程中使用
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        volatile Thread thread;
+        //空转、睡眠和处理事件的时间，只在Reactor线程中修改
+        volatile long spinNanos;
+        volatile long parkNanos;
+        volatile long workNanos;
+
+        Reactor(String name) throws IOException {
+            this.name = name;
+            this.selector = SelectorProvider.provider().openSelector();
+        }
+
+        void register(final SocketChannel channel) {
+            connections.incrementAndGet();
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    registerChannel(channel);
+                }
+            });
+        }
+
+        boolean inReactor() {
+            return thread == Thread.currentThread();
+        }
+
+        /**
+         * 在Reactor线程中执行task，可以在任意线程中调用
+         */
+        void execute(Runnable task) {
+            tasks.offer(task);
+            if (!inReactor() && wakenUp.compareAndSet(false, true)) {
+                wakeups.increment();
+                //忙轮询时Reactor线程不会阻塞在select()中，只可能在park
+                if (busyPoll) {
+                    LockSupport.unpark(thread);
+                } else {
+                    selector.wakeup();
+                }
+            }
+        }
+
+        /**
+         * 唤醒Reactor线程，让它发现running已经为false，自己关闭所有连接和Selector后退出
+         */
+        void close() {
+            selector.wakeup();
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                loop();
+            } catch (ClosedSelectorException e) {
+                //Selector已经关闭，正常退出
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            } finally {
+                //还没有执行的任务中可能有待注册的连接，注册之后和其它连接一起关闭
+                try {
+                    runTasks();
+                } catch (ClosedSelectorException e) {
+                    //ignore
+                }
+                for (SelectionKey sk : selector.keys()) {
+                    disconnect(sk);
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        private void loop() throws IOException {
+            //连续没有事件的次数和下一次park的时长，只在忙轮询时使用
+            int idle = 0;
+            long park = minParkNanos;
+            //无穷循环，它的主要任务就是等待-分发网络消息
+            while (running) {
+                wakenUp.set(false);
+                long start = System.nanoTime();
+                if (busyPoll) {
+                    if (selector.selectNow() == 0 && tasks.isEmpty()) {
+                        idle++;
+                        if (idle <= spinIterations) {
+                            Thread.onSpinWait();
+                            spinNanos += System.nanoTime() - start;
+                        } else if (idle <= spinIterations + yieldIterations) {
+                            Thread.yield();
+                            spinNanos += System.nanoTime() - start;
+                        } else {
+                            //execute()会unpark这个线程，但是网络事件不会，所以park的时长就是空闲时新消息的最大额外延迟
+                            LockSupport.parkNanos(park);
+                            park = Math.min(park * 2, maxParkNanos);
+                            parkNanos += System.nanoTime() - start;
+                        }
+                        continue;
+                    }
+                    idle = 0;
+                    park = minParkNanos;
+                    spinNanos += System.nanoTime() - start;
+                } else {
+                    //select()方法是一个阻塞方法。如果当前没有任何数据准备好，它就会等待。一旦有数据可读，它就会返回。它的返回值是已经准备就绪的SelectionKey的数量。
+                    //已经有任务等待执行时不能阻塞，只检查一下有没有就绪的SelectionKey
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    parkNanos += System.nanoTime() - start;
+                }
+                start = System.nanoTime();
+                //获取那些准备好的SelectionKey
+                Set<SelectionKey> readyKeys = selector.selectedKeys();
+                Iterator<SelectionKey> i = readyKeys.iterator();
+                while (i.hasNext()) {
+                    SelectionKey sk = i.next();
+                    //将这个元素移除！注意，这个非常重要，否则就会重复处理相同的SelectionKey
+                    i.remove();
+                    try {
+                        //判断当前SelectionKey所代表的Channel是否在Acceptable状态，如果是，就进行客户端的接收（执行doAccept()方法）
+                        if (sk.isValid() && sk.isAcceptable()) {
+                            doAccept(this, sk);
+                            //判断Channel是否已经可以读了，如果是就进行读取（doRead()方法）
+                        } else if (sk.isValid() && sk.isReadable()) {
+                            doRead(sk);
+                            //判断通道是否准备好进行写。如果是就进行写入（doWrite()方法），写入完成的数据会根据读取时的时间戳记录耗时。
+                        } else if (sk.isValid() && sk.isWritable()) {
+                            doWrite(sk);
+                        }
+                    } catch (CancelledKeyException ex) {
+                        //连接已经断开或者Selector已经关闭
+                        disconnect(sk);
+                    }
+                }
+                runTasks();
+                workNanos += System.nanoTime() - start;
+            }
+        }
+
+        /**
+         * 执行本轮循环开始前放入的任务，之后放入的留到下一轮，避免任务源源不断时饿死网络事件
+         */
+        private void runTasks() {
+            for (int n = tasks.size(); n > 0; n--) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * 在Reactor自己的线程中完成新连接的注册
+         */
+        private void registerChannel(SocketChannel clientChannel) {
+            try {
+                // Register this channel for reading.
+                //将新生成的Channel注册到selector选择器上，并告诉Selector，我现在对读（OP_READ）操作感兴趣。
+                // 这样，当Selector发现这个Channel已经准备好读时，就能给线程一个通知。
+                SelectionKey clientKey = clientChannel.register(selector, SelectionKey.OP_READ);
+                // Allocate an EchoClient instance and attach it to this selection key.
+                //一个EchoClient实例代表一个客户端。
+                // 我们将这个客户端实例作为附件，附加到表示这个连接的SelectionKey上。
+                // 这样在整个连接的处理过程中，我们都可以共享这个EchoClient实例。
+                EchoClient echoClient = new EchoClient(this, clientKey);
+                clientKey.attach(echoClient);
+                clients.add(echoClient);
+            } catch (IOException e) {
+                System.out.println("Failed to register client.");
+                e.printStackTrace();
+                connections.decrementAndGet();
+                closeQuietly(clientChannel);
+            }
+        }
+    }
 
 
     /**
      * 和Socket编程很类似，当有一个新的客户端连接接入时，就会有一个新的Channel产生代表这个连接。
      * 生成的clientChannel就表示和客户端通信的通道。
      */
-    private void doAccept(SelectionKey sk) {
+    private void doAccept(Reactor acceptor, SelectionKey sk) {
         ServerSocketChannel server = (ServerSocketChannel) sk.channel();
         SocketChannel clientChannel;
         try {
-            clientChannel = server.accept();
-            //将这个Channel配置为非阻塞模式，也就是要求系统在准备好IO后，再通知我们的线程来读取或者写入。
-            clientChannel.configureBlocking(false);
-            // Register this channel for reading.
-            //将新生成的Channel注册到selector选择器上，并告诉Selector，我现在对读（OP_READ）操作感兴趣。
-            // 这样，当Selector发现这个Channel已经准备好读时，就能给线程一个通知。
-            SelectionKey clientKey = clientChannel.register(selector, SelectionKey.OP_READ);
-            // Allocate an EchoClient instance and attach it to this selection key.
-            //一个EchoClient实例代表一个客户端。
-            // 我们将这个客户端实例作为附件，附加到表示这个连接的SelectionKey上。
-            // 这样在整个连接的处理过程中，我们都可以共享这个EchoClient实例。
-            EchoClient echoClient = new EchoClient();
-            clientKey.attach(echoClient);
-            InetAddress clientAddress = clientChannel.socket().getInetAddress();
-            System.out.println("Accepted connection from " + clientAddress.getHostAddress() + ".");
+            //一次唤醒尽量取空accept队列（最多MAX_ACCEPTS个），连接风暴时每个连接一次select()会让队列溢出
+            for (int n = 0; n < MAX_ACCEPTS; n++) {
+                clientChannel = server.accept();
+                if (clientChannel == null) {
+                    return;
+                }
+                //将这个Channel配置为非阻塞模式，也就是要求系统在准备好IO后，再通知我们的线程来读取或者写入。
+                clientChannel.configureBlocking(false);
+                //回显的数据可能被分成多次小块写出，关闭Nagle算法，避免和客户端的延迟确认叠加出几十毫秒的停顿
+                //Unix域套接字没有Nagle算法，也不支持socket()和TCP选项
+                if (!isUnixDomain()) {
+                    clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                acceptor.accepted.increment();
+                accepts.mark();
+                //交给选出的Reactor进行注册，单Reactor模式下就是当前线程自己
+                nextReactor(acceptor).register(clientChannel);
+                if (!quiet) {
+                    System.out.println("Accepted connection from " + (isUnixDomain() ? "unix:" + ((UnixDomainSocketAddress) address).getPath() : clientChannel.getRemoteAddress()) + ".");
+                }
+            }
 
         } catch (Exception e) {
             System.out.println("Failed to accept new client.");
@@ -117,29 +940,116 @@ public class NIOEchoServer {
         }
     }
 
+    /**
+     * 读取数据并解码
+     *
+     * 数据读入连接自己的读缓冲区（池中申请的直接内存，避免了每个数据包的垃圾，也省去了堆内存到本地内存的拷贝），
+     * 追加在上次剩下的半包后面。解码器切出的帧是读缓冲区的slice，交给线程池处理时不发生拷贝，
+     * 读缓冲区为此retain()一次，处理完后release()。
+     *
+     * 读预算：一轮循环中每个连接最多读readBudgetBytes字节、解码出readBudgetMessages个消息（在两次read()之间检查），
+     * 没有读空时连续读，省去多余的select()；用完预算就让出，剩下的数据留在内核的接收缓冲区中，
+     * Selector是水平触发的，下一轮循环会再次选出这个连接，其它连接因此不会被一个持续发送的连接拖住。
+     */
     private void doRead(SelectionKey sk) {
         SocketChannel channel = (SocketChannel) sk.channel();
-        //我们准备8K的缓冲区读取数据，所有读取的数据存放在变量bb中。
-        ByteBuffer bb = ByteBuffer.allocate(8192);
-        int len;
-        try {
-            len = channel.read(bb);
-            if (len < 0) {
+        EchoClient echoClient = (EchoClient) sk.attachment();
+        int bytes = 0;
+        int messages = 0;
+        while (true) {
+            //线程池中的处理结果可能已经超过了高水位，而停止读的flushTask还没有执行，这时先不读
+            if (echoClient.queuedBytes.get() >= highWaterMark) {
+                echoClient.refreshInterestOps();
+                return;
+            }
+            ByteBuffer bb = echoClient.readBuffer().buffer();
+            //读缓冲区比剩下的预算大时只读预算这么多
+            int want = Math.min(bb.remaining(), readBudgetBytes - bytes);
+            int limit = bb.limit();
+            bb.limit(bb.position() + want);
+            int len;
+            try {
+                len = channel.read(bb);
+                if (len < 0) {
+                    disconnect(sk);
+                    return;
+
+                }
+            } catch (Exception e) {
+                //压测结束时客户端带着未读的回显关闭连接，Unix域套接字上会读到Connection reset，quiet时不打印
+                if (!quiet) {
+                    System.out.println("Failed to read from client.");
+                    e.printStackTrace();
+                }
                 disconnect(sk);
                 return;
 
+            } finally {
+                bb.limit(limit);
             }
-        } catch (Exception e) {
-            System.out.println("Failed to read from client.");
-            e.printStackTrace();
-            disconnect(sk);
-            return;
+            if (len == 0) {
+                return;
+            }
+            bytes += len;
+            echoClient.readBytes += len;
+            echoClient.predictor.record(len, want);
+            reads.inc();
+            maxReadBytes.update(len);
+            int n = decode(sk, echoClient, bb);
+            if (n < 0) {
+                return;
+            }
+            messages += n;
+            NIOEchoServer.this.messages.mark(n);
+            if (len < want) {
+                //内核中的数据已经读空了
+                return;
+            }
+            if (bytes >= readBudgetBytes || messages >= readBudgetMessages) {
+                budgetExhausted.increment();
+                return;
+            }
+        }
+    }
 
+    /**
+     * 解码刚读到的数据，把切出的帧交给业务处理器
+     *
+     * @return 帧的个数，数据不合法时断开连接并返回-1
+     */
+    private int decode(SelectionKey sk, EchoClient echoClient, ByteBuffer bb) {
+        long now = System.nanoTime();
+        //in是这次需要解码的数据：上次剩下的半包加上刚读到的数据
+        ByteBuffer in = bb.duplicate();
+        in.limit(bb.position());
+        in.position(echoClient.frameStart);
+        List<ByteBuffer> frames = new ArrayList<ByteBuffer>(4);
+        int required;
+        try {
+            required = pipeline.decoder().decode(in, frames);
+        } catch (IOException e) {
+            System.out.println("Failed to decode: " + e.getMessage());
+            disconnect(sk);
+            return -1;
+        }
+        echoClient.frameStart = in.position();
+        if (!frames.isEmpty()) {
+            if (tp == null) {
+                //INLINE：直接在Reactor线程中处理，写出的数据在本轮循环的写事件或下一轮循环中发送
+                //帧和读缓冲区共享内存，因此为处理任务增加一个引用
+                new HandleMsg(sk, frames, echoClient.inbound.retain(), now, false).run();
+            } else if (pipeline.isOrdered()) {
+                //OFFLOAD：放入连接自己的任务队列，由线程池逐个处理，同一个连接的帧不会被多个线程并发处理，回复的顺序和读到的顺序一致
+                echoClient.handlerTasks.execute(new HandleMsg(sk, frames, echoClient.inbound.retain(), now, true));
+            } else {
+                //消息之间没有顺序要求：每个帧一个任务，各自持有读缓冲区的引用，可以在不同的线程中乱序完成
+                for (ByteBuffer frame : frames) {
+                    tp.execute(new HandleMsg(sk, Collections.singletonList(frame), echoClient.inbound.retain(), now, true));
+                }
+            }
         }
-        //读取完成后，重置缓冲区，为数据处理做准备
-        bb.flip();
-        //线程池进行任务处理
-        tp.execute(new HandleMsg(sk, bb));
+        echoClient.prepareNextRead(required);
+        return frames.size();
     }
 
 
@@ -147,38 +1057,52 @@ public class NIOEchoServer {
      * 函数doWrite()也接收一个SelectionKey，当然针对一个客户端来说，
      * 这个SelectionKey实例和doRead()拿到的SelectionKey是同一个。
      * 因此，通过SelectionKey我们就可以在这两个操作中共享EchoClient实例
+     *
+     * 每次可写时把队列中所有待发送的数据一次性聚集写出（SocketChannel.write(ByteBuffer[])），
+     * 而不是每个可写事件只写一个buffer，这样可以减少系统调用和Selector唤醒的次数。
+     * 队列头部是文件区域时用FileRegion.transferTo()单独发送，没有发送完的部分在下一次可写时继续。
      * @param sk
      */
     private void doWrite(SelectionKey sk) {
         SocketChannel channel = (SocketChannel) sk.channel();
         EchoClient echoClient = (EchoClient) sk.attachment();
-        LinkedList<ByteBuffer> outq = echoClient.getOutputQueue();
-        //获得列表顶部元素，准备写回客户端
-        ByteBuffer bb = outq.getLast();
+        OutboundQueue outq = echoClient.getOutputQueue();
+        ByteBuffer[] gather = echoClient.reactor.gather;
+        boolean empty;
         try {
-            //进行写回操作
-            int len = channel.write(bb);
-            if (len == -1) {
-                disconnect(sk);
-                return;
-
-            }
-            if (bb.remaining() == 0) {
-                // The buffer was completely written, remove it.
-                //如果全部发送完成，则移除这个缓存对象
-                outq.removeLast();
+            //取出队列中所有待发送的数据（最多gather.length个），进行写回操作
+            int n = outq.gather(gather);
+            if (n > 0) {
+                long len = channel.write(gather, 0, n);
+                if (len == -1) {
+                    disconnect(sk);
+                    return;
 
+                }
+                echoClient.written(len);
+            } else {
+                FileRegion region = outq.region();
+                if (region != null) {
+                    echoClient.written(region.transferTo(channel));
+                }
             }
+            // The buffers completely written, remove them.
+            //移除全部发送完成的缓存对象，并把它们归还给池
+            empty = outq.removeWritten(latency);
         } catch (Exception e) {
             System.out.println("Failed to write to client.");
             e.printStackTrace();
             disconnect(sk);
+            return;
 
+        } finally {
+            Arrays.fill(gather, null);
         }
         //在doWrite()中最重要的，也是最容易被忽略的是在全部数据发送完成后（也就是outq的长度为0），需要将写事件（OP_WRITE）从感兴趣的操作中移除。
         // 如果不这么做，每次Channel准备好写时，都会来执行doWrite()方法。而实际上，你又无数据可写，这显然是不合理的。因此，这个操作很重要。
-        if (outq.size() == 0) {
-            sk.interestOps(SelectionKey.OP_READ);
+        //同样，因为背压停止了读的连接，在待发送数据降到低水位以下时要恢复读
+        if (empty || (echoClient.readPaused && echoClient.queuedBytes.get() <= lowWaterMark)) {
+            echoClient.refreshInterestOps();
 
         }
     }
@@ -186,58 +1110,433 @@ public class NIOEchoServer {
 
     class HandleMsg implements Runnable {
         SelectionKey sk;
-        ByteBuffer bb;
+        List<ByteBuffer> frames;
+        PooledBuffer owner;
+        long startNanos;
+        //是否经过线程池执行，只有这时记录排队时间；INLINE模式下在Reactor线程中直接执行，没有排队
+        boolean offloaded;
 
-        public HandleMsg(SelectionKey sk, ByteBuffer bb) {
+        public HandleMsg(SelectionKey sk, List<ByteBuffer> frames, PooledBuffer owner, long startNanos, boolean offloaded) {
             this.sk = sk;
-            this.bb = bb;
+            this.frames = frames;
+            this.owner = owner;
+            this.startNanos = startNanos;
+            this.offloaded = offloaded;
 
         }
 
         @Override
         public void run() {
+            if (offloaded) {
+                handlerQueueWait.recordSince(startNanos);
+            }
             EchoClient echoClient = (EchoClient) sk.attachment();
-            //简单地将接收到的数据压入EchoClient的队列。如果需要处理业务逻辑，就可以在这里进行处理。
-            echoClient.enqueue(bb);
-            //重新注册感兴趣的消息事件，将写操作（OP_WRITE）也作为感兴趣的事件进行提交,??
-            sk.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-            //强迫selector立即返回
-            selector.wakeup();
+            HandlerContext ctx = new HandlerContext(echoClient, owner, startNanos);
+            try {
+                for (ByteBuffer frame : frames) {
+                    if (echoClient.closed) {
+                        //连接已经断开
+                        break;
+                    }
+                    //交给业务处理器，对于回显来说就是简单地将接收到的数据压入EchoClient的队列
+                    pipeline.handler().handle(ctx, frame);
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Failed to handle message.");
+                e.printStackTrace();
+                echoClient.close();
+            } finally {
+                //handle()返回之后帧就失效了，之后其它线程再通过ctx写出的数据不再引用读缓冲区
+                ctx.thread = null;
+                owner.release();
+            }
+
+        }
+    }
+
+    /**
+     * 一个连接的处理任务队列，OFFLOAD模式下保证同一个连接的HandleMsg按提交顺序依次执行
+     *
+     * 任务先放入队列，队列从空闲变为有任务时才把自己提交给线程池，因此一个连接同一时刻最多只有一个线程在处理它的帧，
+     * 前一个任务结束后下一个才开始。连续处理MAX_ORDERED_TASKS个任务后重新提交到线程池的队尾，
+     * 不让一个发送很快的连接一直占用线程；线程池满时CallerRunsPolicy在提交的线程中处理，同样只有一个线程在处理。
+     */
+    class OrderedTasks implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void execute(Runnable task) {
+            tasks.offer(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                tp.execute(this);
+            }
+        }
 
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_ORDERED_TASKS; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                task.run();
+            }
+            scheduled.set(false);
+            //放下标记之后再检查一次，避免和execute()中刚放入的任务错过
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * 一次HandleMsg任务中处理器看到的ChannelContext
+     *
+     * 在执行任务的线程中（也就是handle()返回之前）写出的消息可能引用着读缓冲区，因此要为它retain()读缓冲区，
+     * 直到消息写出后才释放；任务结束后thread被清空，其它线程写出的消息就不再引用读缓冲区了。
+     */
+    class HandlerContext implements ChannelContext {
+        final EchoClient client;
+        final PooledBuffer owner;
+        final long startNanos;
+        Thread thread = Thread.currentThread();
+
+        HandlerContext(EchoClient client, PooledBuffer owner, long startNanos) {
+            this.client = client;
+            this.owner = owner;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void write(ByteBuffer msg) {
+            PooledBuffer ref = null;
+            if (thread == Thread.currentThread()) {
+                ref = owner.retain();
+            }
+            client.write(pipeline.encoder().encode(msg), ref, startNanos);
+        }
+
+        @Override
+        public void write(FileRegion region) {
+            client.write(region, startNanos);
+        }
+
+        @Override
+        public void close() {
+            client.close();
         }
     }
 
     /**
      * EchoClient的定义很简单，它封装了一个队列，保存在需要回复给这个客户端的所有信息，
      * 这样，再进行回复时，只要从outq对象中弹出元素即可。
+     * outq是无锁的MPSC队列：线程池中的线程放入数据，Reactor线程取出数据。
+     * reactor是这个连接所属的Reactor，断开连接时用于维护连接数。
+     * inbound是这个连接的读缓冲区，[frameStart, position)是还没有解码的半包，只在Reactor线程中访问。
+     * queuedBytes是待发送队列中还没有写出的字节数，readPaused表示是否因为超过高水位而停止了读。
+     * flushScheduled表示已经有一个flushTask在Reactor的任务队列中等待执行，避免同一个连接重复提交。
      */
     class EchoClient {
-        private LinkedList<ByteBuffer> outq;
+        private final OutboundQueue outq;
+        private final Reactor reactor;
+        private final SelectionKey sk;
+        final String name;
+        PooledBuffer inbound;
+        int frameStart;
+        //inbound的容量，供其它线程统计内存占用
+        volatile int inboundCapacity;
+        final RecvSizePredictor predictor = newPredictor();
+        //OFFLOAD模式下有序Pipeline的处理任务队列，INLINE模式下为null
+        final OrderedTasks handlerTasks = tp == null ? null : new OrderedTasks();
+        //累计读到的字节数，只在Reactor线程中修改
+        volatile long readBytes;
+        volatile boolean closed;
+        final AtomicLong queuedBytes = new AtomicLong();
+        volatile boolean readPaused;
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+        final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
 
-        EchoClient() {
-            outq = new LinkedList<ByteBuffer>();
+        EchoClient(Reactor reactor, SelectionKey sk) {
+            this.reactor = reactor;
+            this.sk = sk;
+            this.name = connectionName((SocketChannel) sk.channel());
+            outq = new OutboundQueue();
         }
 
-        public LinkedList<ByteBuffer> getOutputQueue() {
+        public OutboundQueue getOutputQueue() {
             return outq;
         }
 
-        public void enqueue(ByteBuffer bb) {
-            outq.addFirst(bb);
+        /**
+         * 把一条编码后的消息放入待发送队列，可以在任意线程中调用。
+         * 只有队列从空变为非空时，才需要将写操作（OP_WRITE）也作为感兴趣的事件进行提交。
+         * 在Reactor线程中（INLINE模式）直接修改感兴趣的事件；在其它线程中则提交flushTask，
+         * 由Reactor线程在本轮循环结束时直接尝试写出，不再需要等待一次OP_WRITE
+         */
+        void write(ByteBuffer[] data, PooledBuffer ref, long startNanos) {
+            if (closed) {
+                if (ref != null) {
+                    ref.release();
+                }
+                return;
+            }
+            long bytes = 0;
+            for (ByteBuffer bb : data) {
+                bytes += bb.remaining();
+            }
+            queuedBytes.addAndGet(bytes);
+            totalQueuedBytes.add(bytes);
+            queued(outq.offer(data, ref, startNanos));
+        }
+
+        /**
+         * 把一个文件区域放入待发送队列，可以在任意线程中调用，区域的字节数同样计入水位
+         */
+        void write(FileRegion region, long startNanos) {
+            if (closed) {
+                region.release();
+                return;
+            }
+            queuedBytes.addAndGet(region.remaining());
+            totalQueuedBytes.add(region.remaining());
+            queued(outq.offer(region, startNanos));
+        }
+
+        private void queued(boolean becameNonEmpty) {
+            //检查closed和offer()之间连接可能已经被断开，releaseAll()已经执行过，刚放入的数据交给Reactor线程再清理一次。
+            //closed在releaseAll()之前设置，这里在offer()之后读取，两者不会同时错过对方
+            if (closed) {
+                if (reactor.inReactor()) {
+                    releaseAll();
+                } else if (flushScheduled.compareAndSet(false, true)) {
+                    reactor.execute(flushTask);
+                }
+                return;
+            }
+            //队列从空变为非空，或者超过了高水位需要停止读时，重新计算感兴趣的事件
+            if (becameNonEmpty || (!readPaused && queuedBytes.get() >= highWaterMark)) {
+                if (reactor.inReactor()) {
+                    if (sk.isValid()) {
+                        refreshInterestOps();
+                    }
+                } else if (flushScheduled.compareAndSet(false, true)) {
+                    reactor.execute(flushTask);
+                }
+            }
+        }
+
+        /**
+         * 在Reactor线程中执行：写出队列中的数据，再根据剩下的数据和水位重新计算感兴趣的事件
+         */
+        void flush() {
+            flushScheduled.set(false);
+            if (closed || !sk.isValid()) {
+                //连接已经断开，归还断开之后其它线程放入队列的数据（OutboundQueue只能由Reactor线程消费）
+                disconnect(sk);
+                releaseAll();
+                return;
+            }
+            try {
+                if (!outq.isEmpty()) {
+                    doWrite(sk);
+                }
+                if (sk.isValid()) {
+                    refreshInterestOps();
+                }
+            } catch (CancelledKeyException e) {
+                disconnect(sk);
+            }
+        }
+
+        /**
+         * 请求关闭连接，可以在任意线程中调用。
+         * 关闭输入后Reactor线程会读到EOF，由它完成断开连接和释放资源
+         */
+        void close() {
+            try {
+                ((SocketChannel) sk.channel()).shutdownInput();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+
+        /**
+         * Reactor线程写出len字节后调用
+         */
+        void written(long len) {
+            queuedBytes.addAndGet(-len);
+            totalQueuedBytes.add(-len);
+        }
+
+        /**
+         * 根据队列当前是否为空、待发送字节数是否越过水位重新计算感兴趣的事件。
+         * 只在Reactor线程中调用：其它线程的生产者通过flushTask交给Reactor线程，因此不需要加锁，
+         * 这个方法只在这些状态变化时调用，不在每个数据包的路径上。
+         */
+        void refreshInterestOps() {
+            long queued = queuedBytes.get();
+            if (!readPaused && queued >= highWaterMark) {
+                readPaused = true;
+                readPauses.increment();
+            } else if (readPaused && queued <= lowWaterMark) {
+                readPaused = false;
+            }
+            int ops = (readPaused ? 0 : SelectionKey.OP_READ) | (outq.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            if (sk.interestOps() != ops) {
+                sk.interestOps(ops);
+            }
+        }
+
+        /**
+         * 读缓冲区，没有时按照预测的大小从池中申请
+         */
+        PooledBuffer readBuffer() {
+            if (inbound == null) {
+                setInbound(bufferPool.acquire(predictor.nextSize()));
+                frameStart = 0;
+            }
+            return inbound;
+        }
+
+        void setInbound(PooledBuffer inbound) {
+            this.inbound = inbound;
+            this.inboundCapacity = inbound == null ? 0 : inbound.buffer().capacity();
+        }
+
+        /**
+         * 解码之后为下一次读做准备，尽量少地拷贝半包：
+         * 1.没有半包时，如果没有帧还在引用读缓冲区，并且它的大小就是预测的大小，就直接复用它，否则放弃它，下次读时按照预测的大小重新申请；
+         * 2.有半包时，如果缓冲区剩余的空间足够容纳整个帧，什么都不做，新数据直接追加在后面；
+         * 3.空间不够但缓冲区足够大并且只有自己在引用它，把半包移动到缓冲区开头；
+         * 4.否则申请一个足够大的新缓冲区，把半包拷贝过去。
+         *
+         * @param required 解码器返回的下一个帧总共需要的字节数
+         */
+        void prepareNextRead(int required) {
+            ByteBuffer bb = inbound.buffer();
+            int leftover = bb.position() - frameStart;
+            if (leftover == 0) {
+                if (inbound.refCnt() == 1 && bb.capacity() == predictor.nextSize()) {
+                    bb.clear();
+                } else {
+                    inbound.release();
+                    setInbound(null);
+                }
+                frameStart = 0;
+                return;
+            }
+            int need = Math.max(required, leftover + MIN_READ_SPACE);
+            if (bb.capacity() - frameStart >= need) {
+                return;
+            }
+            if (inbound.refCnt() == 1 && bb.capacity() >= need) {
+                bb.limit(bb.position());
+                bb.position(frameStart);
+                bb.compact();
+                frameStart = 0;
+                return;
+            }
+            PooledBuffer next = bufferPool.acquire(Math.max(need, predictor.nextSize()));
+            ByteBuffer src = bb.duplicate();
+            src.limit(bb.position());
+            src.position(frameStart);
+            next.buffer().put(src);
+            inbound.release();
+            setInbound(next);
+            frameStart = 0;
+        }
+
+        /**
+         * 连接断开时归还读缓冲区和所有还没有写出的数据
+         */
+        void releaseAll() {
+            long bytes = outq.releaseAll();
+            queuedBytes.addAndGet(-bytes);
+            totalQueuedBytes.add(-bytes);
+            if (inbound != null) {
+                inbound.release();
+                setInbound(null);
+            }
         }
     }
 
+    /**
+     * 取消SelectionKey并关闭连接，同时减少所属Reactor的连接数
+     */
     private void disconnect(SelectionKey sk) {
         sk.cancel();
+        EchoClient echoClient = (EchoClient) sk.attachment();
+        if (echoClient != null) {
+            if (echoClient.closed) {
+                return;
+            }
+            echoClient.closed = true;
+            clients.remove(echoClient);
+            echoClient.reactor.connections.decrementAndGet();
+            echoClient.releaseAll();
+        }
+        closeQuietly(sk.channel());
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            //ignore
+        }
     }
 
 
     /**
      * 启动服务
+     * 参数：[worker数量] [ROUND_ROBIN|LEAST_CONNECTIONS]，不带参数时使用单Reactor模式
      * @param args
      */
     public static void main(String[] args) throws Exception {
-        NIOEchoServer nioEchoServer = new NIOEchoServer();
+        int workerCount = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        BalanceStrategy strategy = args.length > 1 ? BalanceStrategy.valueOf(args[1]) : BalanceStrategy.ROUND_ROBIN;
+        //-Dunix=socket文件路径时监听Unix域套接字，否则监听localhost:8000
+        String unix = System.getProperty("unix");
+        NIOEchoServer nioEchoServer = new NIOEchoServer(unix != null ? UnixDomainSocketAddress.of(unix) : new InetSocketAddress("localhost", 8000),
+                workerCount, strategy);
+        //-Dframing=length时使用4字节长度前缀切分消息，-Dframing=correlated时使用带请求ID的协议（-Dservice.us模拟处理时间的上限），
+        //否则原样回显读到的字节
+        if ("length".equals(System.getProperty("framing"))) {
+            nioEchoServer.setPipeline(Pipeline.lengthFieldEcho(1 << 20));
+        } else if ("correlated".equals(System.getProperty("framing"))) {
+            nioEchoServer.setPipeline(Pipeline.correlatedEcho(1 << 20, TimeUnit.MICROSECONDS.toNanos(Long.getLong("service.us", 0))));
+        }
+        //-Dwater.low、-Dwater.high设置待发送字节数的低水位和高水位
+        //-Dread.budget.bytes、-Dread.budget.messages设置每个连接每轮循环的读预算
+        nioEchoServer.setReadBudget(Integer.getInteger("read.budget.bytes", 32 * 1024), Integer.getInteger("read.budget.messages", 32));
+        //-Dread.buffer.min、-Dread.buffer.max设置读缓冲区大小的范围，相等时使用固定大小
+        int minReadBuffer = Integer.getInteger("read.buffer.min", 512);
+        int maxReadBuffer = Integer.getInteger("read.buffer.max", BufferPool.MAX_POOLED_SIZE);
+        nioEchoServer.setReadBufferSize(minReadBuffer, Math.max(minReadBuffer, Math.min(READ_BUFFER_SIZE, maxReadBuffer)), maxReadBuffer);
+        //-Dbusy.poll=true时使用忙轮询，-Dbusy.spins、-Dbusy.yields、-Dbusy.park.max.us设置退避参数
+        if (Boolean.getBoolean("busy.poll")) {
+            nioEchoServer.setBusyPoll(Integer.getInteger("busy.spins", 100000), Integer.getInteger("busy.yields", 1000),
+                    1000, TimeUnit.MICROSECONDS.toNanos(Long.getLong("busy.park.max.us", 1000)));
+        }
+        //-Dlisteners=N时用SO_REUSEPORT打开N个监听套接字
+        int listeners = Integer.getInteger("listeners", 1);
+        nioEchoServer.setListeners(listeners);
+        nioEchoServer.setWriteBufferWaterMark(Integer.getInteger("water.low", 32 * 1024), Integer.getInteger("water.high", 64 * 1024));
+        //-Dexecution=INLINE时在Reactor线程中直接处理消息，-Dhandler.threads、-Dhandler.queue设置OFFLOAD模式下线程池的大小
+        nioEchoServer.setExecutionMode(ExecutionMode.valueOf(System.getProperty("execution", "OFFLOAD")),
+                Integer.getInteger("handler.threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("handler.queue", 1024));
+        //按照系统属性stat.interval（秒）定时输出延迟分布和服务器的各项指标
+        LatencyReporter.startDefault(nioEchoServer.getLatency()).addRegistry(nioEchoServer.getMetrics());
         nioEchoServer.startServer();
     }
 }
@@ -0,0 +1,210 @@
+package com.zbq.io.nio;
+
+import com.zbq.io.buffer.PooledBuffer;
+import com.zbq.io.nio.pipeline.FileRegion;
+import com.zbq.metrics.LatencyRecorder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * 每个连接的待发送队列，多生产者单消费者（MPSC），无锁实现
+ *
+ * 生产者是处理消息的线程池线程，它们通过offer()把要回写的数据加入队列；
+ * 消费者只有一个，就是这个连接所属的Reactor线程，它在doWrite()中通过gather()一次取出所有待发送的数据，
+ * 用一次SocketChannel.write(ByteBuffer[])聚集写（gathering write）发送出去，再用removeWritten()移除已经发送完成的数据。
+ *
+ * 实现上是一个单向链表：生产者用getAndSet()原子地交换tail，再把前一个节点的next指向新节点；
+ * 消费者只访问head，因此head不需要任何同步。
+ * 当前节点数记录在size中，offer()返回队列是否从空变为非空，调用者据此决定是否需要注册OP_WRITE，
+ * 这样只有在队列空/非空发生变化时才修改感兴趣的事件、唤醒Selector。
+ *
+ * 一个节点是一条编码后的消息，可能由多个ByteBuffer组成（例如长度头加消息体），
+ * 它们作为一个整体入队，不会和其它线程同时写入的消息交错。
+ * 节点还带有这条消息所引用的PooledBuffer（发送完成后释放）以及数据被读到时的时间戳（发送完成时记录进延迟直方图）。
+ *
+ * 节点也可以是一个FileRegion，它不能和ByteBuffer一起聚集写：gather()遇到它就停止，
+ * 它到达队列头部时由Reactor线程通过region()取出单独发送。
+ */
+final class OutboundQueue {
+
+    private static final ByteBuffer[] EMPTY = new ByteBuffer[0];
+
+    static final class Node {
+        volatile Node next;
+        ByteBuffer[] data;
+        PooledBuffer owner;
+        FileRegion region;
+        final long startNanos;
+
+        Node(ByteBuffer[] data, PooledBuffer owner, FileRegion region, long startNanos) {
+            this.data = data;
+            this.owner = owner;
+            this.region = region;
+            this.startNanos = startNanos;
+        }
+
+        boolean isWritten() {
+            if (region != null) {
+                return region.isDone();
+            }
+            for (ByteBuffer bb : data) {
+                if (bb.hasRemaining()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long remaining() {
+            if (region != null) {
+                return region.remaining();
+            }
+            long n = 0;
+            for (ByteBuffer bb : data) {
+                n += bb.remaining();
+            }
+            return n;
+        }
+
+        void release() {
+            if (owner != null) {
+                owner.release();
+                owner = null;
+            }
+            if (region != null) {
+                region.release();
+                region = null;
+            }
+            data = null;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+    private final AtomicReference<Node> tail;
+    private final AtomicInteger size = new AtomicInteger();
+    private Node head;                                //消费者私有，head本身是一个已经被取走的哨兵节点
+
+    OutboundQueue() {
+        Node stub = new Node(null, null, null, 0);
+        head = stub;
+        tail = new AtomicReference<Node>(stub);
+    }
+
+    /**
+     * 生产者调用，可以被多个线程同时调用
+     *
+     * @param data       一条消息的所有数据，按顺序发送
+     * @param owner      data引用的PooledBuffer，调用者已经为这个节点retain()过，发送完成后释放；没有时为null
+     * @param startNanos 这份数据被读到的时间（System.nanoTime()），为0时不记录延迟
+     * @return 加入之前队列是否为空
+     */
+    boolean offer(ByteBuffer[] data, PooledBuffer owner, long startNanos) {
+        return offer(new Node(data, owner, null, startNanos));
+    }
+
+    /**
+     * 生产者调用：加入一个文件区域，发送完成后释放它
+     *
+     * @return 加入之前队列是否为空
+     */
+    boolean offer(FileRegion region, long startNanos) {
+        return offer(new Node(EMPTY, null, region, startNanos));
+    }
+
+    private boolean offer(Node node) {
+        //先增加size再链接节点：消费者可能短暂地看到size大于0但节点还不可见，这时它只会多等待一次OP_WRITE
+        boolean wasEmpty = size.getAndIncrement() == 0;
+        Node prev = tail.getAndSet(node);
+        NEXT.lazySet(prev, node);
+        return wasEmpty;
+    }
+
+    /**
+     * 消费者调用：把队列头部最多dst.length个待发送的ByteBuffer依次放入dst，不移除，遇到文件区域时停止
+     *
+     * @return 放入的个数
+     */
+    int gather(ByteBuffer[] dst) {
+        int n = 0;
+        Node node = head.next;
+        while (node != null && node.region == null && n < dst.length) {
+            for (ByteBuffer bb : node.data) {
+                if (n == dst.length) {
+                    break;
+                }
+                if (bb.hasRemaining()) {
+                    dst[n++] = bb;
+                }
+            }
+            node = node.next;
+        }
+        return n;
+    }
+
+    /**
+     * 消费者调用：队列头部第一条还没有发送完成的消息是文件区域时返回它，否则返回null
+     */
+    FileRegion region() {
+        Node node = head.next;
+        while (node != null && node.isWritten()) {
+            node = node.next;
+        }
+        return node == null ? null : node.region;
+    }
+
+    /**
+     * 消费者调用：移除头部已经全部发送完成的消息并释放它们引用的buffer，遇到第一个还有剩余数据的消息就停止
+     *
+     * @param latency 记录每条消息从读到到发送完成的耗时
+     * @return 移除之后队列是否为空
+     */
+    boolean removeWritten(LatencyRecorder latency) {
+        int removed = 0;
+        long now = 0;
+        Node next;
+        while ((next = head.next) != null && next.isWritten()) {
+            if (next.startNanos != 0) {
+                if (now == 0) {
+                    now = System.nanoTime();
+                }
+                latency.record(now - next.startNanos);
+            }
+            next.release();
+            head = next;
+            removed++;
+        }
+        return size.addAndGet(-removed) == 0;
+    }
+
+    /**
+     * 消费者调用：连接断开时释放所有还没有发送的消息
+     *
+     * @return 被丢弃的还没有发送的字节数
+     */
+    long releaseAll() {
+        int removed = 0;
+        long bytes = 0;
+        Node next;
+        while ((next = head.next) != null) {
+            bytes += next.remaining();
+            next.release();
+            head = next;
+            removed++;
+        }
+        size.addAndGet(-removed);
+        return bytes;
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    int size() {
+        return size.get();
+    }
+}
@@ -0,0 +1,346 @@
+package com.zbq.io.nio;
+
+import com.zbq.io.buffer.BufferPool;
+import com.zbq.io.buffer.PooledBuffer;
+import com.zbq.io.buffer.RecvSizePredictor;
+import com.zbq.io.nio.pipeline.CorrelatedEchoHandler;
+import com.zbq.io.nio.pipeline.LengthFieldFrameDecoder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 支持请求流水线的客户端：一个连接上可以同时有多个未完成的请求
+ *
+ * 协议和Pipeline.correlatedEcho()相同：每个请求是4字节长度 + 8字节请求ID + 数据，响应带回同样的ID。
+ * 1.send()分配一个递增的ID，返回一个CompletableFuture，收到ID相同的响应时完成，响应可以乱序到达；
+ * 2.一个I/O线程用自己的Selector完成所有的读写，send()只是把请求放入无锁队列，再按需唤醒Selector（和NIOEchoServer的Reactor一样合并唤醒）；
+ * 3.同时未完成的请求数不超过maxInFlight，达到上限时send()阻塞，相当于客户端的背压；
+ * 4.future在I/O线程中完成，回调中不要做阻塞的操作；
+ * 5.读缓冲区从BufferPool申请，大小由RecvSizePredictor根据最近读到的数据量调整，读完的数据不剩余时才会换大小。
+ */
+public class PipelinedEchoClient implements Closeable {
+
+    //请求头：长度 + 请求ID
+    static final int HEADER_LENGTH = LengthFieldFrameDecoder.HEADER_LENGTH + CorrelatedEchoHandler.ID_LENGTH;
+    //一次聚集写最多发送的buffer数
+    static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final Thread ioThread;
+    private final int maxInFlight;
+    private final Semaphore window;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, CompletableFuture<ByteBuffer>> inFlight = new ConcurrentHashMap<Long, CompletableFuture<ByteBuffer>>();
+    //send()放入、I/O线程取出的请求
+    private final ConcurrentLinkedQueue<ByteBuffer[]> outbound = new ConcurrentLinkedQueue<ByteBuffer[]>();
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+    private volatile boolean closed;
+    private final LongAdder outOfOrder = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+
+    //以下只在I/O线程中访问
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final RecvSizePredictor predictor = new RecvSizePredictor(512, 8192, BufferPool.MAX_POOLED_SIZE);
+    //写模式，null表示还没有申请
+    private PooledBuffer inbound;
+    private long maxCompletedId;
+    //只由I/O线程修改
+    private volatile long reads;
+    private volatile int inboundCapacity;
+
+    /**
+     * 连接到address（TCP或者Unix域套接字），并启动I/O线程
+     *
+     * @param maxInFlight 同时未完成的请求数的上限
+     */
+    public PipelinedEchoClient(SocketAddress address, int maxInFlight) throws IOException {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight <= 0: " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+        this.window = new Semaphore(maxInFlight);
+        channel = NIOEchoClient.open(address);
+        channel.connect(address);
+        channel.configureBlocking(false);
+        selector = SelectorProvider.provider().openSelector();
+        key = channel.register(selector, SelectionKey.OP_READ);
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "pipelined-client-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * 发送一个请求，返回的future在收到响应时完成，结果是响应中去掉请求ID之后的数据（拷贝到堆内存）。
+     * 请求写出之前不能修改payload；未完成的请求达到maxInFlight时阻塞
+     */
+    public CompletableFuture<ByteBuffer> send(ByteBuffer payload) {
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+        window.acquireUninterruptibly();
+        if (closed) {
+            window.release();
+            future.completeExceptionally(new ClosedChannelException());
+            return future;
+        }
+        long id = nextId.incrementAndGet();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(CorrelatedEchoHandler.ID_LENGTH + payload.remaining()).putLong(id).flip();
+        inFlight.put(id, future);
+        outbound.offer(new ByteBuffer[]{header, payload.duplicate()});
+        if (closed) {
+            //和close()并发时，close()可能已经清理过inFlight了
+            fail(id, new ClosedChannelException());
+        } else if (Thread.currentThread() != ioThread && wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return future;
+    }
+
+    private void loop() {
+        Throwable cause = null;
+        try {
+            while (!closed) {
+                wakenUp.set(false);
+                //有新请求时不阻塞，直接把它们写出去
+                if (outbound.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+                    SelectionKey sk = i.next();
+                    i.remove();
+                    if (sk.isValid() && sk.isReadable()) {
+                        read();
+                    }
+                }
+                write();
+            }
+        } catch (Throwable e) {
+            cause = e;
+        } finally {
+            closed = true;
+            try {
+                channel.close();
+                selector.close();
+            } catch (IOException e) {
+                //ignore
+            }
+            setInbound(null);
+            for (Long id : inFlight.keySet()) {
+                fail(id, cause != null ? cause : new ClosedChannelException());
+            }
+            //唤醒等待窗口的线程，它们会看到closed
+            window.release(maxInFlight);
+        }
+    }
+
+    /**
+     * 把新请求和上次没有写完的数据一起聚集写出，写不完时关注OP_WRITE
+     */
+    private void write() throws IOException {
+        ByteBuffer[] request;
+        while ((request = outbound.poll()) != null) {
+            writing.add(request[0]);
+            writing.add(request[1]);
+        }
+        while (!writing.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer bb : writing) {
+                gather[n++] = bb;
+                if (n == gather.length) {
+                    break;
+                }
+            }
+            long len = channel.write(gather, 0, n);
+            Arrays.fill(gather, 0, n, null);
+            while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+                writing.poll();
+            }
+            if (len == 0) {
+                break;
+            }
+        }
+        int ops = writing.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * 读取响应，按照请求ID完成对应的future
+     */
+    private void read() throws IOException {
+        if (inbound == null) {
+            setInbound(BufferPool.DEFAULT.acquire(predictor.nextSize()));
+        }
+        ByteBuffer readBuffer = inbound.buffer();
+        int len = channel.read(readBuffer);
+        if (len < 0) {
+            throw new ClosedChannelException();
+        }
+        if (len == 0) {
+            return;
+        }
+        predictor.record(len);
+        reads++;
+        readBuffer.flip();
+        int required = 0;
+        while (readBuffer.remaining() >= LengthFieldFrameDecoder.HEADER_LENGTH) {
+            int start = readBuffer.position();
+            int length = readBuffer.getInt(start);
+            if (length < CorrelatedEchoHandler.ID_LENGTH) {
+                throw new IOException("bad frame length " + length);
+            }
+            if (readBuffer.remaining() < LengthFieldFrameDecoder.HEADER_LENGTH + length) {
+                required = LengthFieldFrameDecoder.HEADER_LENGTH + length;
+                break;
+            }
+            long id = readBuffer.getLong(start + LengthFieldFrameDecoder.HEADER_LENGTH);
+            ByteBuffer response = ByteBuffer.allocate(length - CorrelatedEchoHandler.ID_LENGTH);
+            ByteBuffer body = readBuffer.duplicate();
+            body.position(start + HEADER_LENGTH).limit(start + LengthFieldFrameDecoder.HEADER_LENGTH + length);
+            response.put(body).flip();
+            readBuffer.position(start + LengthFieldFrameDecoder.HEADER_LENGTH + length);
+            complete(id, response);
+        }
+        //预测的大小变了，或者剩下的半个响应比读缓冲区还大时，换一个缓冲区，把剩下的数据拷贝过去
+        int size = Math.max(required, predictor.nextSize());
+        if (size == readBuffer.capacity()) {
+            readBuffer.compact();
+        } else if (!readBuffer.hasRemaining()) {
+            setInbound(BufferPool.DEFAULT.acquire(size));
+        } else {
+            PooledBuffer next = BufferPool.DEFAULT.acquire(size);
+            next.buffer().put(readBuffer);
+            setInbound(next);
+        }
+    }
+
+    private void setInbound(PooledBuffer buffer) {
+        if (inbound != null) {
+            inbound.release();
+        }
+        inbound = buffer;
+        inboundCapacity = buffer == null ? 0 : buffer.buffer().capacity();
+    }
+
+    private void complete(long id, ByteBuffer response) {
+        CompletableFuture<ByteBuffer> future = inFlight.remove(id);
+        if (future == null) {
+            return;
+        }
+        //比已经完成的请求更早发出的请求，说明服务器乱序完成了
+        if (id < maxCompletedId) {
+            outOfOrder.increment();
+        } else {
+            maxCompletedId = id;
+        }
+        completed.increment();
+        window.release();
+        future.complete(response);
+    }
+
+    private void fail(long id, Throwable cause) {
+        CompletableFuture<ByteBuffer> future = inFlight.remove(id);
+        if (future != null) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * 关闭连接，还没有完成的请求以ClosedChannelException失败
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 当前未完成的请求数
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    /**
+     * 乱序到达的响应数：到达时已经有ID更大的请求完成了
+     */
+    public long getOutOfOrder() {
+        return outOfOrder.sum();
+    }
+
+    /**
+     * 累计的read()次数
+     */
+    public long getReads() {
+        return reads;
+    }
+
+    /**
+     * 读缓冲区当前占用的字节数
+     */
+    public int getReadBufferBytes() {
+        return inboundCapacity;
+    }
+
+    public static void main(String[] args) throws Exception {
+        //参数：[host，默认localhost] [port，默认8000] [请求数，默认10] [maxInFlight，默认10]
+        //服务器需要用-Dframing=correlated启动，加上-Dservice.us=1000可以看到乱序的响应
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8000;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int maxInFlight = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        PipelinedEchoClient client = new PipelinedEchoClient(NIOEchoClient.address(host, port), maxInFlight);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[requests];
+        for (int i = 0; i < requests; i++) {
+            final String msg = "request-" + i;
+            futures[i] = client.send(ByteBuffer.wrap(msg.getBytes())).thenAccept(response -> {
+                byte[] data = new byte[response.remaining()];
+                response.get(data);
+                System.out.println(msg + " -> " + new String(data));
+            });
+        }
+        CompletableFuture.allOf(futures).join();
+        System.out.println("completed=" + client.getCompleted() + " outOfOrder=" + client.getOutOfOrder()
+                + " reads=" + client.getReads() + " readBufferBytes=" + client.getReadBufferBytes());
+        client.close();
+    }
+}
@@ -0,0 +1,77 @@
+package com.zbq.io.nio;
+
+import com.zbq.io.nio.pipeline.Pipeline;
+import com.zbq.metrics.LatencyHistogram;
+import com.zbq.metrics.LatencyRecorder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求流水线的对比测试
+ *
+ * 启动使用Pipeline.correlatedEcho()的NIOEchoServer（OFFLOAD），每个请求在线程池中随机处理[0, service)微秒，
+ * 对每一个窗口大小（同时未完成的请求数）用一个PipelinedEchoClient连接持续发送请求，
+ * 输出每秒完成的请求数、往返延迟（p50/p99，微秒）和乱序到达的响应所占的比例。
+ * 窗口为1时相当于原来的一问一答，吞吐量受限于单个请求的往返时间；窗口越大，一个连接上越多的请求被线程池并发处理。
+ *
+ * 参数：[窗口大小列表，默认1,4,16,64] [每轮秒数，默认5] [消息字节数，默认64] [处理时间上限（微秒），默认100] [处理线程数，默认4]
+ */
+public class PipeliningBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String windows = args.length > 0 ? args[0] : "1,4,16,64";
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        long serviceMicros = args.length > 3 ? Long.parseLong(args[3]) : 100;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+
+        final NIOEchoServer server = new NIOEchoServer("localhost", 0, 0, NIOEchoServer.BalanceStrategy.ROUND_ROBIN);
+        server.setPipeline(Pipeline.correlatedEcho(1 << 20, TimeUnit.MICROSECONDS.toNanos(serviceMicros)));
+        server.setExecutionMode(NIOEchoServer.ExecutionMode.OFFLOAD, threads, 1024);
+        server.setQuiet(true);
+        server.bind();
+        Thread boss = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "nio-boss");
+        boss.start();
+
+        ByteBuffer payload = ByteBuffer.allocateDirect(size);
+        System.out.println("window\treq/s\tp50(us)\tp99(us)\tout-of-order");
+        for (String w : windows.split(",")) {
+            int window = Integer.parseInt(w.trim());
+            PipelinedEchoClient client = new PipelinedEchoClient(server.getLocalAddress(), window);
+            final LatencyRecorder latency = new LatencyRecorder("rtt");
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            CompletableFuture<ByteBuffer> last = null;
+            while (System.nanoTime() < deadline) {
+                final long sent = System.nanoTime();
+                last = client.send(payload);
+                last.thenRun(() -> latency.recordSince(sent));
+            }
+            if (last != null) {
+                last.join();
+            }
+            while (client.getInFlight() > 0) {
+                Thread.sleep(1);
+            }
+            long elapsed = System.nanoTime() - start;
+            long completed = client.getCompleted();
+            LatencyHistogram h = latency.snapshot();
+            System.out.printf("%d\t%.0f\t%.1f\t%.1f\t%.1f%%%n", window, completed * 1e9 / elapsed,
+                    h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, client.getOutOfOrder() * 100.0 / Math.max(1, completed));
+            client.close();
+        }
+        server.shutdown();
+        boss.join();
+    }
+}
@@ -0,0 +1,142 @@
+package com.zbq.io.nio;
+
+import com.zbq.io.buffer.BufferPool;
+import com.zbq.io.nio.pipeline.Pipeline;
+import com.zbq.metrics.LatencyHistogram;
+import com.zbq.metrics.LatencyRecorder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定大小和自适应大小的读缓冲区对比
+ *
+ * 对每一种消息大小，分别用固定8K的读缓冲区（原来的行为）和自适应的读缓冲区（512B到读预算，见RecvSizePredictor）
+ * 启动单Reactor、INLINE、按照长度前缀切分消息的NIOEchoServer，connections个连接做ping-pong，
+ * 输出每秒消息数、服务器平均每个消息的read()次数、每个连接平均占用的读缓冲区字节数（每毫秒采样一次）和往返延迟的p99（微秒）。
+ * 小消息时自适应的缓冲区会缩小到512B，大消息时扩大到32K，一次读到更多的数据。
+ * 服务器使用默认的读预算（32K），自适应的缓冲区不会超过它：更大的缓冲区一次也只读32K，读不满反而会让缓冲区来回缩小、扩大。
+ *
+ * 参数：[消息字节数列表，默认64,1024,16384,262144] [连接数，默认4] [每轮秒数，默认3]
+ */
+public class ReceiveSizeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String sizes = args.length > 0 ? args[0] : "64,1024,16384,262144";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        System.out.println("size\tbuffer\tmsg/s\treads/msg\tbytes/conn\tp99(us)");
+        for (String s : sizes.split(",")) {
+            int size = Integer.parseInt(s.trim());
+            run(size, false, connections, seconds);
+            run(size, true, connections, seconds);
+        }
+    }
+
+    static void run(int size, boolean adaptive, int connections, int seconds) throws Exception {
+        final NIOEchoServer server = new NIOEchoServer("localhost", 0, 0, NIOEchoServer.BalanceStrategy.ROUND_ROBIN);
+        server.setExecutionMode(NIOEchoServer.ExecutionMode.INLINE, 1, 1);
+        server.setPipeline(Pipeline.lengthFieldEcho(Math.max(size, 1024 * 1024)));
+        if (adaptive) {
+            server.setReadBufferSize(512, NIOEchoServer.READ_BUFFER_SIZE, BufferPool.MAX_POOLED_SIZE);
+        } else {
+            server.setReadBufferSize(NIOEchoServer.READ_BUFFER_SIZE, NIOEchoServer.READ_BUFFER_SIZE, NIOEchoServer.READ_BUFFER_SIZE);
+        }
+        server.setQuiet(true);
+        server.bind();
+        Thread boss = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "nio-boss");
+        boss.start();
+
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalPort());
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1000000000L;
+        LatencyRecorder latency = new LatencyRecorder("rtt");
+        LongAdder messages = new LongAdder();
+        CountDownLatch done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            new Thread(new FramedPingPong(address, size, deadline, messages, latency, done), "ping-pong-" + i).start();
+        }
+        //每毫秒采样一次所有连接的读缓冲区占用，取平均值。连接在两次读之间可能不持有读缓冲区，所以瞬时值波动很大
+        long bufferBytes = 0;
+        long samples = 0;
+        while (!done.await(1, TimeUnit.MILLISECONDS)) {
+            bufferBytes += server.getReadBufferBytes();
+            samples++;
+        }
+        long elapsed = System.nanoTime() - start;
+        long reads = server.getReads();
+        long decoded = server.getMessages();
+        server.shutdown();
+        boss.join();
+
+        LatencyHistogram h = latency.snapshot();
+        System.out.printf("%d\t%s\t%.0f\t%.2f\t%d\t%.1f%n", size, adaptive ? "adaptive" : "fixed",
+                messages.sum() * 1e9 / elapsed, decoded == 0 ? 0 : reads / (double) decoded,
+                samples == 0 ? 0 : bufferBytes / samples / connections, h.percentile(99) / 1000.0);
+    }
+
+    /**
+     * 发送一个带4字节长度前缀的消息，收到完整的回显之后再发送下一个，直到deadline
+     */
+    static class FramedPingPong implements Runnable {
+        final InetSocketAddress address;
+        final int size;
+        final long deadline;
+        final LongAdder messages;
+        final LatencyRecorder latency;
+        final CountDownLatch done;
+
+        FramedPingPong(InetSocketAddress address, int size, long deadline, LongAdder messages, LatencyRecorder latency, CountDownLatch done) {
+            this.address = address;
+            this.size = size;
+            this.deadline = deadline;
+            this.messages = messages;
+            this.latency = latency;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try (SocketChannel channel = SocketChannel.open(address)) {
+                channel.socket().setTcpNoDelay(true);
+                ByteBuffer out = ByteBuffer.allocateDirect(4 + size);
+                out.putInt(0, size);
+                ByteBuffer in = ByteBuffer.allocateDirect(4 + size);
+                long now;
+                while ((now = System.nanoTime()) < deadline) {
+                    out.clear();
+                    while (out.hasRemaining()) {
+                        channel.write(out);
+                    }
+                    in.clear();
+                    while (in.hasRemaining()) {
+                        if (channel.read(in) < 0) {
+                            return;
+                        }
+                    }
+                    messages.increment();
+                    latency.recordSince(now);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.zbq.io.nio;
+
+import com.zbq.metrics.LatencyHistogram;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Unix域套接字和回环TCP的对比测试
+ *
+ * 对每一种连接数和消息大小，分别在localhost:0和临时目录下的socket文件上启动NIOEchoServer（单Reactor，INLINE），
+ * 用NIOEchoClient闭环压测，输出每秒请求数、吞吐量（MB/s）以及往返延迟（p50/p99/p999，微秒）。
+ * 1个连接时主要比较延迟，多个连接时主要比较吞吐量。Unix域套接字省去了TCP/IP协议栈的处理，消息越小差别越明显。
+ *
+ * 参数：[连接数列表，默认1,16] [消息字节数列表，默认64,1024,16384] [每轮秒数，默认5]
+ */
+public class UnixDomainSocketBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String conns = args.length > 0 ? args[0] : "1,16";
+        String sizes = args.length > 1 ? args[1] : "64,1024,16384";
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        Path dir = Files.createTempDirectory("nio-uds");
+        Path socket = dir.resolve("echo.sock");
+
+        System.out.println("transport\tconns\tsize\treq/s\tMB/s\tp50(us)\tp99(us)\tp999(us)");
+        try {
+            for (String c : conns.split(",")) {
+                for (String s : sizes.split(",")) {
+                    int connections = Integer.parseInt(c.trim());
+                    int size = Integer.parseInt(s.trim());
+                    run("tcp", new InetSocketAddress("localhost", 0), connections, size, seconds);
+                    run("unix", UnixDomainSocketAddress.of(socket), connections, size, seconds);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    static void run(String transport, SocketAddress address, int connections, int size, int seconds) throws Exception {
+        final NIOEchoServer server = new NIOEchoServer(address, 0, NIOEchoServer.BalanceStrategy.ROUND_ROBIN);
+        server.setExecutionMode(NIOEchoServer.ExecutionMode.INLINE, 1, 1);
+        server.setQuiet(true);
+        server.bind();
+        Thread boss = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "nio-boss");
+        boss.start();
+
+        NIOEchoClient client = new NIOEchoClient();
+        client.setConnections(connections, 1);
+        client.setPayloadSize(size);
+        client.setClosedLoop(0);
+        client.setWarmup(1);
+        NIOEchoClient.LoadResult result = client.load(new SocketAddress[]{server.getLocalAddress()}, seconds);
+        server.shutdown();
+        boss.join();
+
+        LatencyHistogram h = result.getUncorrected();
+        System.out.printf("%s\t%d\t%d\t%.0f\t%.1f\t%.1f\t%.1f\t%.1f%n", transport, connections, size, result.getThroughput(),
+                result.getThroughput() * size / (1024 * 1024), h.percentile(50) / 1000.0, h.percentile(99) / 1000.0,
+                h.percentile(99.9) / 1000.0);
+        if (result.getErrors() > 0 || result.getFailed() > 0) {
+            System.out.println("  failed=" + result.getFailed() + " errors=" + result.getErrors());
+        }
+    }
+}
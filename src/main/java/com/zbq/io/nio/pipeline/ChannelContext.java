@@ -0,0 +1,26 @@
+package com.zbq.io.nio.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 处理器看到的连接
+ */
+public interface ChannelContext {
+
+    /**
+     * 经过编码器后放入这个连接的待发送队列，可以在任意线程中调用。
+     * 调用之后就不能再修改msg了
+     */
+    void write(ByteBuffer msg);
+
+    /**
+     * 把文件中的一段区域放入这个连接的待发送队列，不经过编码器，可以在任意线程中调用。
+     * 区域发送完成或者连接断开后由服务器释放
+     */
+    void write(FileRegion region);
+
+    /**
+     * 关闭这个连接
+     */
+    void close();
+}
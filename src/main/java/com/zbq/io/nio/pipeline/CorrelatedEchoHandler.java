@@ -0,0 +1,45 @@
+package com.zbq.io.nio.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 带关联ID的回显：消息体的前8字节是客户端分配的请求ID（大端），回显时原样保留，客户端据此匹配请求和响应
+ *
+ * 可以模拟一段随机的处理时间，这时同一个连接上的多个请求在线程池中并发处理，处理时间短的先完成，
+ * 响应的顺序和请求的顺序不同。
+ */
+public class CorrelatedEchoHandler implements MessageHandler {
+
+    public static final int ID_LENGTH = 8;
+
+    private final long maxServiceNanos;
+
+    /**
+     * @param maxServiceNanos 每个请求随机处理[0, maxServiceNanos)纳秒，为0时立即回复
+     */
+    public CorrelatedEchoHandler(long maxServiceNanos) {
+        this.maxServiceNanos = maxServiceNanos;
+    }
+
+    /**
+     * 读出消息体中的请求ID，不改变msg的position
+     */
+    public static long id(ByteBuffer msg) {
+        return msg.getLong(msg.position());
+    }
+
+    @Override
+    public void handle(ChannelContext ctx, ByteBuffer msg) {
+        if (msg.remaining() < ID_LENGTH) {
+            //没有请求ID，协议错误
+            ctx.close();
+            return;
+        }
+        if (maxServiceNanos > 0) {
+            LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(maxServiceNanos));
+        }
+        ctx.write(msg);
+    }
+}
@@ -0,0 +1,16 @@
+package com.zbq.io.nio.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 把收到的消息原样写回
+ */
+public class EchoHandler implements MessageHandler {
+
+    public static final EchoHandler INSTANCE = new EchoHandler();
+
+    @Override
+    public void handle(ChannelContext ctx, ByteBuffer msg) {
+        ctx.write(msg);
+    }
+}
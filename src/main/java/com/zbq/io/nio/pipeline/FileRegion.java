@@ -0,0 +1,134 @@
+package com.zbq.io.nio.pipeline;
+
+import com.zbq.io.buffer.BufferPool;
+import com.zbq.io.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 文件中的一段区域，作为一条消息通过ChannelContext.write(FileRegion)发送
+ *
+ * 1.zeroCopy为true时用FileChannel.transferTo()发送，在Linux上是sendfile()，数据直接从页缓存送往socket，不经过用户空间；
+ * 2.否则每次从文件读最多CHUNK_SIZE字节到一个池中申请的直接内存，再写入socket，用于对比。
+ *
+ * 两种方式都可能只发送了一部分（socket发送缓冲区满了），已经发送的字节数记在transferred中，下次可写时从那里继续。
+ * 读写都使用绝对位置，不修改FileChannel自己的position，因此多个区域可以共享同一个FileChannel。
+ * 区域只能由一个线程（连接所属的Reactor线程）发送，发送完成或者连接断开时调用release()。
+ */
+public class FileRegion {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final FileChannel file;
+    private final long position;
+    private final long count;
+    private final boolean zeroCopy;
+    private final boolean closeOnRelease;
+    private long transferred;
+    //非零拷贝方式使用的缓冲区，[position, limit)是读出来还没有写入socket的数据
+    private PooledBuffer chunk;
+
+    /**
+     * @param file     要发送的文件，release()时不会关闭它
+     * @param position 区域在文件中的起始位置
+     * @param count    区域的字节数
+     * @param zeroCopy 是否使用transferTo()发送
+     */
+    public FileRegion(FileChannel file, long position, long count, boolean zeroCopy) {
+        this(file, position, count, zeroCopy, false);
+    }
+
+    private FileRegion(FileChannel file, long position, long count, boolean zeroCopy, boolean closeOnRelease) {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("position=" + position + ", count=" + count);
+        }
+        this.file = file;
+        this.position = position;
+        this.count = count;
+        this.zeroCopy = zeroCopy;
+        this.closeOnRelease = closeOnRelease;
+    }
+
+    /**
+     * 打开整个文件作为一个区域，release()时关闭文件
+     */
+    public static FileRegion open(Path path, boolean zeroCopy) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        return new FileRegion(file, 0, file.size(), zeroCopy, true);
+    }
+
+    /**
+     * 向target发送剩下的数据，target是非阻塞的时候可能只发送一部分
+     *
+     * @return 这次写入target的字节数
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (zeroCopy) {
+            long n = file.transferTo(position + transferred, count - transferred, target);
+            transferred += n;
+            return n;
+        }
+        if (chunk == null) {
+            chunk = BufferPool.DEFAULT.acquire(CHUNK_SIZE);
+            chunk.buffer().flip();
+        }
+        ByteBuffer bb = chunk.buffer();
+        if (!bb.hasRemaining()) {
+            //上一块已经全部写出，读下一块
+            long left = count - transferred;
+            if (left == 0) {
+                return 0;
+            }
+            bb.clear();
+            if (left < bb.remaining()) {
+                bb.limit((int) left);
+            }
+            int r = file.read(bb, position + transferred);
+            bb.flip();
+            if (r < 0) {
+                throw new IOException("file truncated at " + (position + transferred));
+            }
+        }
+        int n = target.write(bb);
+        transferred += n;
+        return n;
+    }
+
+    public boolean isDone() {
+        return transferred == count;
+    }
+
+    /**
+     * 还没有发送的字节数
+     */
+    public long remaining() {
+        return count - transferred;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    public void release() {
+        if (chunk != null) {
+            chunk.release();
+            chunk = null;
+        }
+        if (closeOnRelease) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+}
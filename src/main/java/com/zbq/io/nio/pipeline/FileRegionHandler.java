@@ -0,0 +1,37 @@
+package com.zbq.io.nio.pipeline;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 静态文件处理器：每收到一条消息，就把整个文件发送给客户端
+ *
+ * 文件在构造时打开一次，所有连接共享这个FileChannel，每个请求只创建一个不拥有文件的FileRegion。
+ */
+public class FileRegionHandler implements MessageHandler {
+
+    private final FileChannel file;
+    private final boolean zeroCopy;
+
+    public FileRegionHandler(Path path, boolean zeroCopy) throws IOException {
+        this.file = FileChannel.open(path, StandardOpenOption.READ);
+        this.zeroCopy = zeroCopy;
+    }
+
+    @Override
+    public void handle(ChannelContext ctx, ByteBuffer msg) {
+        try {
+            ctx.write(new FileRegion(file, 0, file.size(), zeroCopy));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,23 @@
+package com.zbq.io.nio.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 解码器：把读到的字节流切分成一个个完整的消息（帧）
+ *
+ * 实现必须是无状态的，所有连接共享同一个实例。未解码完的半包由服务器保存在连接自己的读缓冲区中，
+ * 下一次读到的数据会紧接着追加在后面，再次调用decode()时in中就是半包加上新数据。
+ */
+public interface FrameDecoder {
+
+    /**
+     * 从in中切出所有完整的帧放入out。帧应该是in的slice()，和读缓冲区共享内存而不是拷贝出来，
+     * 调用返回后in的position必须停在第一个不完整的帧的开头。
+     *
+     * @return 下一个帧总共需要的字节数（包括已经收到的部分），服务器据此保证读缓冲区足够大；不知道时返回0
+     * @throws IOException 数据不合法（例如帧过长），服务器会断开这个连接
+     */
+    int decode(ByteBuffer in, List<ByteBuffer> out) throws IOException;
+}
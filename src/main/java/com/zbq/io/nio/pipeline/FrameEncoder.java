@@ -0,0 +1,14 @@
+package com.zbq.io.nio.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 编码器：把要发送的消息转换成依次写出的若干个ByteBuffer
+ *
+ * 返回多个ByteBuffer（例如单独的长度头加上原始的消息体），而不是把它们拷贝到一起，
+ * 服务器会用一次聚集写把它们发送出去。实现必须是无状态的。
+ */
+public interface FrameEncoder {
+
+    ByteBuffer[] encode(ByteBuffer msg);
+}
@@ -0,0 +1,45 @@
+package com.zbq.io.nio.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 长度前缀的解码器：每个帧是一个4字节的大端长度（不包括这4个字节本身）加上对应长度的消息体
+ *
+ * 切出的帧只包含消息体，是读缓冲区的slice()，不发生拷贝。
+ * 遇到半包时停止，并返回这个帧总共需要的字节数，服务器据此准备足够大的读缓冲区，
+ * 这样一个大帧最多只会在跨越缓冲区边界时被拷贝一次。
+ */
+public class LengthFieldFrameDecoder implements FrameDecoder {
+
+    public static final int HEADER_LENGTH = 4;
+
+    private final int maxFrameLength;
+
+    /**
+     * @param maxFrameLength 消息体的最大长度，超过时认为数据不合法
+     */
+    public LengthFieldFrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public int decode(ByteBuffer in, List<ByteBuffer> out) throws IOException {
+        while (in.remaining() >= HEADER_LENGTH) {
+            int start = in.position();
+            int length = in.getInt(start);
+            if (length < 0 || length > maxFrameLength) {
+                throw new IOException("frame length " + length + " exceeds " + maxFrameLength);
+            }
+            if (in.remaining() < HEADER_LENGTH + length) {
+                return HEADER_LENGTH + length;
+            }
+            ByteBuffer frame = in.duplicate();
+            frame.position(start + HEADER_LENGTH).limit(start + HEADER_LENGTH + length);
+            out.add(frame.slice());
+            in.position(start + HEADER_LENGTH + length);
+        }
+        return in.hasRemaining() ? HEADER_LENGTH : 0;
+    }
+}
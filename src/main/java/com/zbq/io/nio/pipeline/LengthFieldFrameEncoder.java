@@ -0,0 +1,18 @@
+package com.zbq.io.nio.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 长度前缀的编码器：在消息前面加上4字节的大端长度，长度头和消息体作为两个ByteBuffer聚集写出，消息体不被拷贝
+ */
+public class LengthFieldFrameEncoder implements FrameEncoder {
+
+    public static final LengthFieldFrameEncoder INSTANCE = new LengthFieldFrameEncoder();
+
+    @Override
+    public ByteBuffer[] encode(ByteBuffer msg) {
+        ByteBuffer header = ByteBuffer.allocate(LengthFieldFrameDecoder.HEADER_LENGTH);
+        header.putInt(0, msg.remaining());
+        return new ByteBuffer[]{header, msg};
+    }
+}
@@ -0,0 +1,16 @@
+package com.zbq.io.nio.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 业务处理器，在线程池中被调用
+ *
+ * msg是解码得到的一个完整的帧，通常和读缓冲区共享内存，只在handle()返回之前有效：
+ * 在handle()中调用ctx.write(msg)是安全的（服务器会保证这块内存在写出之前不被回收），
+ * 如果要在handle()返回之后（例如在其它线程中）使用msg，必须先把它拷贝出来。
+ * 实现必须是线程安全的，所有连接共享同一个实例。
+ */
+public interface MessageHandler {
+
+    void handle(ChannelContext ctx, ByteBuffer msg);
+}
@@ -0,0 +1,75 @@
+package com.zbq.io.nio.pipeline;
+
+/**
+ * 处理流水线：解码器 → 业务处理器 → 编码器
+ *
+ * 服务器在Reactor线程中读取数据并调用解码器，把解码得到的帧交给线程池中的业务处理器，
+ * 处理器通过ChannelContext.write()写出的消息再经过编码器放入连接的待发送队列。
+ *
+ * ordered为true时，同一个连接的帧按照读到的顺序依次处理，回复的顺序和请求一致：
+ * OFFLOAD模式下每次读到的帧是一个任务，放入连接自己的任务队列，前一个任务处理完之后下一个才开始；
+ * 为false时（消息自带关联ID，例如correlatedEcho()），OFFLOAD模式下每个帧是一个单独的任务，
+ * 由线程池并发处理，先处理完的先回复，客户端按照ID把回复和请求对应起来。
+ */
+public class Pipeline {
+
+    private final FrameDecoder decoder;
+    private final MessageHandler handler;
+    private final FrameEncoder encoder;
+    private final boolean ordered;
+
+    public Pipeline(FrameDecoder decoder, MessageHandler handler, FrameEncoder encoder) {
+        this(decoder, handler, encoder, true);
+    }
+
+    public Pipeline(FrameDecoder decoder, MessageHandler handler, FrameEncoder encoder, boolean ordered) {
+        this.decoder = decoder;
+        this.handler = handler;
+        this.encoder = encoder;
+        this.ordered = ordered;
+    }
+
+    /**
+     * 原样回显读到的字节，不区分消息边界
+     */
+    public static Pipeline rawEcho() {
+        return new Pipeline(RawFrameDecoder.INSTANCE, EchoHandler.INSTANCE, RawFrameEncoder.INSTANCE);
+    }
+
+    /**
+     * 按照4字节长度前缀切分消息，并以同样的格式回显
+     */
+    public static Pipeline lengthFieldEcho(int maxFrameLength) {
+        return new Pipeline(new LengthFieldFrameDecoder(maxFrameLength), EchoHandler.INSTANCE, LengthFieldFrameEncoder.INSTANCE);
+    }
+
+    /**
+     * 带关联ID的请求-响应协议：长度前缀的帧，消息体是8字节的请求ID加上数据，回显时保留ID。
+     * 各个请求可以乱序完成，见CorrelatedEchoHandler
+     *
+     * @param maxServiceNanos 模拟的处理时间上限，每个请求随机处理[0, maxServiceNanos)纳秒，为0时不模拟
+     */
+    public static Pipeline correlatedEcho(int maxFrameLength, long maxServiceNanos) {
+        return new Pipeline(new LengthFieldFrameDecoder(maxFrameLength), new CorrelatedEchoHandler(maxServiceNanos),
+                LengthFieldFrameEncoder.INSTANCE, false);
+    }
+
+    public FrameDecoder decoder() {
+        return decoder;
+    }
+
+    public MessageHandler handler() {
+        return handler;
+    }
+
+    public FrameEncoder encoder() {
+        return encoder;
+    }
+
+    /**
+     * 同一个连接的帧是否必须按照读到的顺序处理和回复
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+}
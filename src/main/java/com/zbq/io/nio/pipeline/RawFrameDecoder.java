@@ -0,0 +1,21 @@
+package com.zbq.io.nio.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 不区分消息边界：每次读到的所有数据作为一个帧，这是NIOEchoServer原来的行为
+ */
+public class RawFrameDecoder implements FrameDecoder {
+
+    public static final RawFrameDecoder INSTANCE = new RawFrameDecoder();
+
+    @Override
+    public int decode(ByteBuffer in, List<ByteBuffer> out) {
+        if (in.hasRemaining()) {
+            out.add(in.slice());
+            in.position(in.limit());
+        }
+        return 0;
+    }
+}
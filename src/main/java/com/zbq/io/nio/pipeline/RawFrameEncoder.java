@@ -0,0 +1,16 @@
+package com.zbq.io.nio.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 原样发送消息
+ */
+public class RawFrameEncoder implements FrameEncoder {
+
+    public static final RawFrameEncoder INSTANCE = new RawFrameEncoder();
+
+    @Override
+    public ByteBuffer[] encode(ByteBuffer msg) {
+        return new ByteBuffer[]{msg};
+    }
+}
@@ -0,0 +1,33 @@
+package com.zbq.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 计数器，基于LongAdder：多个线程同时增加时分散在不同的cell上，读的时候再求和
+ */
+public final class Counter implements Metric {
+
+    private final LongAdder count = new LongAdder();
+
+    public void inc() {
+        count.increment();
+    }
+
+    public void add(long n) {
+        count.add(n);
+    }
+
+    public void dec() {
+        count.decrement();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public void snapshot(String name, Map<String, Number> into) {
+        into.put(name, count.sum());
+    }
+}
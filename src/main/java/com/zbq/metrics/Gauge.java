@@ -0,0 +1,25 @@
+package com.zbq.metrics;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * 读取时才计算的值，例如队列长度、连接数
+ */
+public final class Gauge implements Metric {
+
+    private final LongSupplier supplier;
+
+    public Gauge(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    public long get() {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    public void snapshot(String name, Map<String, Number> into) {
+        into.put(name, supplier.getAsLong());
+    }
+}
@@ -0,0 +1,186 @@
+package com.zbq.metrics;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定内存的对数-线性（log-linear）直方图，记录纳秒级的延迟
+ *
+ * 1.小于256的值每个值一个桶，是精确的；
+ *   更大的值按照最高位分段，每一段（[2^k, 2^(k+1))）再线性地分成128个子桶，因此相对误差不超过1/128（约0.8%）。
+ * 2.可以记录的最大值约为2^40纳秒（约18分钟），更大的值按最大值记录。所有的桶在构造时一次分配好，记录时不会分配任何内存。
+ * 3.允许多个线程同时写（record）和读：记录时只对一个桶做一次原子加，不加锁；
+ *   总数不单独维护，读的时候由各个桶累加得到；最大值只有出现更大的值时才CAS更新，稳定以后几乎不写。
+ *   多线程记录时，线程按照哈希分散到LatencyRecorder中固定数量的直方图上，再用add()合并。
+ */
+public final class LatencyHistogram {
+
+    static final int SUB_BITS = 8;
+    static final int HALF = 1 << (SUB_BITS - 1);            //每一段的子桶数
+    static final int MAX_BITS = 40;
+    public static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    static final int LENGTH = index(MAX_VALUE) + 1;
+
+    private static final VarHandle MAX;
+
+    static {
+        try {
+            MAX = MethodHandles.lookup().findVarHandle(LatencyHistogram.class, "max", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(LENGTH);
+    private volatile long max;
+
+    /**
+     * 记录一个值，可以由多个线程同时调用
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        counts.getAndIncrement(index(value));
+        updateMax(value);
+    }
+
+    private void updateMax(long value) {
+        long current;
+        while (value > (current = max)) {
+            if (MAX.weakCompareAndSet(this, current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 记录一个值，并修正协调遗漏（coordinated omission）：
+     * 闭环压测时，一次很慢的请求会让发送方在这段时间内少发出value/expectedInterval个请求，
+     * 这些本该发出的请求各自也会等待，因此补记value-expectedInterval、value-2*expectedInterval……直到不超过expectedInterval
+     *
+     * @param expectedInterval 正常情况下两次请求之间的间隔，为0时不修正
+     */
+    public void recordCorrected(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+            record(missing);
+        }
+    }
+
+    /**
+     * 把other的计数累加到当前直方图中，用于合并多个直方图的数据
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < LENGTH; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.getAndAdd(i, c);
+            }
+        }
+        updateMax(other.max);
+    }
+
+    /**
+     * 当前直方图减去一个更早的快照，得到这段时间内的增量。
+     * 增量的最大值只能精确到桶，取最高的非空桶的上界
+     */
+    public LatencyHistogram minus(LatencyHistogram earlier) {
+        LatencyHistogram delta = new LatencyHistogram();
+        int highest = -1;
+        for (int i = 0; i < LENGTH; i++) {
+            long c = counts.get(i) - earlier.counts.get(i);
+            if (c > 0) {
+                delta.counts.lazySet(i, c);
+                highest = i;
+            }
+        }
+        delta.max = highest < 0 ? 0 : Math.min(highestEquivalent(highest), max);
+        return delta;
+    }
+
+    /**
+     * 返回百分位上的值（取桶的上界），percentile取值为0到100
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 总数由各个桶累加得到，有线程正在记录时是近似值
+     */
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public void reset() {
+        for (int i = 0; i < LENGTH; i++) {
+            counts.set(i, 0);
+        }
+        max = 0;
+    }
+
+    static int index(long value) {
+        if (value < 2 * HALF) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return HALF * shift + (int) (value >>> shift);
+    }
+
+    static long lowestEquivalent(int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        return (long) (index - HALF * shift) << shift;
+    }
+
+    static long highestEquivalent(int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        return lowestEquivalent(index) + (1L << shift) - 1;
+    }
+
+    /**
+     * 格式化为 count/p50/p90/p99/p999/max，单位微秒
+     */
+    public String summary() {
+        return String.format("count=%d p50=%.1fus p90=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                getTotalCount(), percentile(50) / 1000.0, percentile(90) / 1000.0,
+                percentile(99) / 1000.0, percentile(99.9) / 1000.0, getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,98 @@
+package com.zbq.metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 多线程的延迟记录器
+ *
+ * 内部是固定数量（CPU核数向上取2的幂）的LatencyHistogram，记录线程按照线程id的哈希选择其中一个，
+ * 第一次用到时才创建。记录时只对一个桶做一次原子加：没有锁、也不分配内存，因此可以放在IO线程的热路径上；
+ * 线程数远多于直方图数时（例如虚拟线程、CACHED线程池）几个线程共用一个直方图，内存仍然是固定的，不会随线程数增长。
+ * 汇报线程通过snapshot()把所有直方图合并成一个累计快照，再用intervalSnapshot()得到上次汇报以来的增量，
+ * 整个过程不会阻塞记录线程。
+ */
+public final class LatencyRecorder {
+
+    static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private final String name;
+    private final AtomicReferenceArray<LatencyHistogram> histograms = new AtomicReferenceArray<LatencyHistogram>(STRIPES);
+    //只由汇报线程访问
+    private LatencyHistogram lastSnapshot = new LatencyHistogram();
+
+    public LatencyRecorder(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 记录一次耗时，单位纳秒
+     */
+    public void record(long nanos) {
+        histogram().record(nanos);
+    }
+
+    /**
+     * 记录从startNanos（System.nanoTime()）到现在的耗时
+     */
+    public void recordSince(long startNanos) {
+        histogram().record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 记录一次耗时并修正协调遗漏，见LatencyHistogram.recordCorrected()
+     */
+    public void recordCorrected(long nanos, long expectedIntervalNanos) {
+        histogram().recordCorrected(nanos, expectedIntervalNanos);
+    }
+
+    /**
+     * 所有线程从开始到现在的累计数据
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (int i = 0; i < STRIPES; i++) {
+            LatencyHistogram h = histograms.get(i);
+            if (h != null) {
+                merged.add(h);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 上次调用以来的增量，同一个recorder只应该有一个汇报线程调用
+     */
+    public synchronized LatencyHistogram intervalSnapshot() {
+        LatencyHistogram current = snapshot();
+        LatencyHistogram delta = current.minus(lastSnapshot);
+        lastSnapshot = current;
+        return delta;
+    }
+
+    /**
+     * 当前线程对应的直方图。线程id通常是连续分配的，乘以黄金分割常数后取高位，让相邻的id落在不同的直方图上
+     */
+    private LatencyHistogram histogram() {
+        int i = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+        LatencyHistogram h = histograms.get(i);
+        if (h == null) {
+            h = new LatencyHistogram();
+            if (!histograms.compareAndSet(i, null, h)) {
+                h = histograms.get(i);
+            }
+        }
+        return h;
+    }
+
+    static int stripes(int cpus) {
+        int n = 1;
+        while (n < cpus) {
+            n <<= 1;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,110 @@
+package com.zbq.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 定时汇报延迟分布
+ *
+ * 使用一个独立的守护线程，每隔interval把各个LatencyRecorder在这段时间内的p50/p90/p99/p999和最大值打印出来。
+ * 合并和计算百分位都在这个线程中完成，IO线程只负责记录。
+ * 还可以登记一些计量值（gauge），例如待发送的字节数，每次汇报时读取并打印当前值；
+ * 以及MetricRegistry，每次汇报时打印它的snapshot()。
+ */
+public final class LatencyReporter {
+
+    private final List<LatencyRecorder> recorders = new CopyOnWriteArrayList<LatencyRecorder>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<String, LongSupplier>();
+    private final List<MetricRegistry> registries = new CopyOnWriteArrayList<MetricRegistry>();
+    private final long interval;
+    private final TimeUnit unit;
+    private ScheduledExecutorService scheduler;
+
+    public LatencyReporter(long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval <= 0: " + interval);
+        }
+        this.interval = interval;
+        this.unit = unit;
+    }
+
+    public LatencyReporter add(LatencyRecorder recorder) {
+        recorders.add(recorder);
+        return this;
+    }
+
+    public LatencyReporter addGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+        return this;
+    }
+
+    public LatencyReporter addRegistry(MetricRegistry registry) {
+        registries.add(registry);
+        return this;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "latency-reporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, interval, interval, unit);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    void report() {
+        for (LatencyRecorder recorder : recorders) {
+            LatencyHistogram h = recorder.intervalSnapshot();
+            if (h.getTotalCount() > 0) {
+                System.out.println("[" + recorder.getName() + "] " + h.summary());
+            }
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            System.out.println("[" + gauge.getKey() + "] " + gauge.getValue().getAsLong());
+        }
+        for (MetricRegistry registry : registries) {
+            for (Map.Entry<String, Number> metric : registry.snapshot().entrySet()) {
+                Number value = metric.getValue();
+                System.out.println("[" + metric.getKey() + "] "
+                        + (value instanceof Double ? String.format("%.1f", value.doubleValue()) : value));
+            }
+        }
+    }
+
+    /**
+     * 从系统属性stat.interval（秒，默认10）创建并启动一个汇报器，供各个服务器的main()使用
+     */
+    public static LatencyReporter startDefault(LatencyRecorder... recorders) {
+        LatencyReporter reporter = new LatencyReporter(Long.getLong("stat.interval", 10), TimeUnit.SECONDS);
+        for (LatencyRecorder recorder : recorders) {
+            reporter.add(recorder);
+        }
+        reporter.start();
+        return reporter;
+    }
+}
@@ -0,0 +1,38 @@
+package com.zbq.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * 记录出现过的最大值，基于LongAccumulator(Long::max)：
+ * 不比当前最大值大的更新只读一次，不需要CAS，因此适合放在热路径上记录峰值，例如一次读到的最大字节数
+ */
+public final class MaxGauge implements Metric {
+
+    private final LongAccumulator max = new LongAccumulator(Long::max, Long.MIN_VALUE);
+
+    public void update(long value) {
+        max.accumulate(value);
+    }
+
+    /**
+     * 最大值，还没有记录过时返回0
+     */
+    public long get() {
+        long v = max.get();
+        return v == Long.MIN_VALUE ? 0 : v;
+    }
+
+    /**
+     * 返回最大值并重新开始记录，用于按时间段统计峰值
+     */
+    public long getThenReset() {
+        long v = max.getThenReset();
+        return v == Long.MIN_VALUE ? 0 : v;
+    }
+
+    @Override
+    public void snapshot(String name, Map<String, Number> into) {
+        into.put(name, get());
+    }
+}
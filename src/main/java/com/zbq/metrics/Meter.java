@@ -0,0 +1,112 @@
+package com.zbq.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 速率：1分钟、5分钟和15分钟的指数加权移动平均（EWMA），以及从创建以来的平均速率，单位是每秒
+ *
+ * 1.mark()只是LongAdder.add()，记录线程不做任何计算；
+ * 2.每TICK_INTERVAL（5秒）把这段时间的增量折算成瞬时速率，按rate += alpha * (instant - rate)更新各个平均值，
+ *   alpha = 1 - e^(-5秒/窗口)，窗口越长，平均值越平滑；
+ * 3.不需要后台线程：读取速率时检查是否过了TICK_INTERVAL，由读取的线程补上错过的tick。
+ */
+public final class Meter implements Metric {
+
+    static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final double TICK_SECONDS = TICK_INTERVAL / 1e9;
+    private static final double M1_ALPHA = 1 - Math.exp(-TICK_SECONDS / 60);
+    private static final double M5_ALPHA = 1 - Math.exp(-TICK_SECONDS / 300);
+    private static final double M15_ALPHA = 1 - Math.exp(-TICK_SECONDS / 900);
+
+    private final LongAdder count = new LongAdder();
+    private final long startTime = System.nanoTime();
+    private final AtomicLong lastTick = new AtomicLong(startTime);
+    //以下只在tick()中修改
+    private long lastCount;
+    private boolean initialized;
+    private volatile double m1Rate;
+    private volatile double m5Rate;
+    private volatile double m15Rate;
+
+    public void mark() {
+        count.increment();
+    }
+
+    public void mark(long n) {
+        count.add(n);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getOneMinuteRate() {
+        tickIfNecessary();
+        return m1Rate;
+    }
+
+    public double getFiveMinuteRate() {
+        tickIfNecessary();
+        return m5Rate;
+    }
+
+    public double getFifteenMinuteRate() {
+        tickIfNecessary();
+        return m15Rate;
+    }
+
+    /**
+     * 从创建以来的平均速率
+     */
+    public double getMeanRate() {
+        long elapsed = System.nanoTime() - startTime;
+        return elapsed <= 0 ? 0 : count.sum() * 1e9 / elapsed;
+    }
+
+    private void tickIfNecessary() {
+        long old = lastTick.get();
+        long now = System.nanoTime();
+        long age = now - old;
+        if (age > TICK_INTERVAL) {
+            //对齐到tick的边界，同一个tick只有一个线程能CAS成功
+            if (lastTick.compareAndSet(old, now - age % TICK_INTERVAL)) {
+                tick(age / TICK_INTERVAL);
+            }
+        }
+    }
+
+    /**
+     * 第一个tick用这段时间的增量，其余错过的tick按没有事件处理
+     */
+    private synchronized void tick(long ticks) {
+        long current = count.sum();
+        double instant = (current - lastCount) / TICK_SECONDS;
+        lastCount = current;
+        if (!initialized) {
+            m1Rate = instant;
+            m5Rate = instant;
+            m15Rate = instant;
+            initialized = true;
+            ticks--;
+            instant = 0;
+        }
+        for (long i = 0; i < ticks; i++) {
+            m1Rate += M1_ALPHA * (instant - m1Rate);
+            m5Rate += M5_ALPHA * (instant - m5Rate);
+            m15Rate += M15_ALPHA * (instant - m15Rate);
+            instant = 0;
+        }
+    }
+
+    @Override
+    public void snapshot(String name, Map<String, Number> into) {
+        into.put(name + ".count", getCount());
+        into.put(name + ".m1Rate", getOneMinuteRate());
+        into.put(name + ".m5Rate", m5Rate);
+        into.put(name + ".m15Rate", m15Rate);
+        into.put(name + ".meanRate", getMeanRate());
+    }
+}
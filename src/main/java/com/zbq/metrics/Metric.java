@@ -0,0 +1,14 @@
+package com.zbq.metrics;
+
+import java.util.Map;
+
+/**
+ * MetricRegistry中的一个指标
+ *
+ * 记录（热路径）和读取（汇报线程）是分开的：记录方法不加锁、不分配内存，
+ * snapshot()只在汇报线程中调用，把当前值以name为前缀放入into。
+ */
+public interface Metric {
+
+    void snapshot(String name, Map<String, Number> into);
+}
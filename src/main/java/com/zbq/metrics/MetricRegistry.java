@@ -0,0 +1,104 @@
+package com.zbq.metrics;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * 按名字管理的一组指标：计数器（Counter）、最大/最小值（MaxGauge/MinGauge）、速率（Meter）、计时器（Timer）和按需读取的值（Gauge）
+ *
+ * 1.counter()等方法按名字获取指标，不存在时创建，同一个名字已经注册为其它类型时抛出IllegalArgumentException。
+ *   查找只应该在初始化时做一次，热路径上直接使用返回的对象；
+ * 2.snapshot()在调用线程中读取所有指标，得到按名字排序的扁平的值，例如nio.messages.m1Rate，
+ *   一般由LatencyReporter定时调用并打印；
+ * 3.每个服务器实例有自己的registry，同一个进程中启动多个服务器（例如各个Benchmark）时互不干扰。
+ */
+public final class MetricRegistry {
+
+    private final ConcurrentSkipListMap<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+
+    public Counter counter(String name) {
+        return getOrAdd(name, Counter.class, n -> new Counter());
+    }
+
+    public MaxGauge maxGauge(String name) {
+        return getOrAdd(name, MaxGauge.class, n -> new MaxGauge());
+    }
+
+    public MinGauge minGauge(String name) {
+        return getOrAdd(name, MinGauge.class, n -> new MinGauge());
+    }
+
+    public Meter meter(String name) {
+        return getOrAdd(name, Meter.class, n -> new Meter());
+    }
+
+    public Timer timer(String name) {
+        return getOrAdd(name, Timer.class, Timer::new);
+    }
+
+    /**
+     * 注册一个读取时才计算的值，同名的Gauge会被替换
+     */
+    public Gauge gauge(String name, LongSupplier supplier) {
+        Gauge gauge = new Gauge(supplier);
+        metrics.compute(name, (n, old) -> {
+            if (old != null && !(old instanceof Gauge)) {
+                throw new IllegalArgumentException(name + " is already registered as " + old.getClass().getSimpleName());
+            }
+            return gauge;
+        });
+        return gauge;
+    }
+
+    /**
+     * 监控一个线程池：线程数、活跃线程数、队列长度、最大线程数和完成的任务数。
+     * 这些值由ThreadPoolExecutor自己维护，读取时才计算，不影响提交和执行任务
+     */
+    public void monitor(String name, ThreadPoolExecutor pool) {
+        gauge(name + ".poolSize", pool::getPoolSize);
+        gauge(name + ".active", pool::getActiveCount);
+        gauge(name + ".queueSize", () -> pool.getQueue().size());
+        gauge(name + ".largestPoolSize", pool::getLargestPoolSize);
+        gauge(name + ".completed", pool::getCompletedTaskCount);
+    }
+
+    public boolean remove(String name) {
+        return metrics.remove(name) != null;
+    }
+
+    public Metric get(String name) {
+        return metrics.get(name);
+    }
+
+    public Set<String> getNames() {
+        return metrics.keySet();
+    }
+
+    /**
+     * 所有指标的当前值，按名字排序
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> result = new TreeMap<String, Number>();
+        for (Map.Entry<String, Metric> e : metrics.entrySet()) {
+            e.getValue().snapshot(e.getKey(), result);
+        }
+        return result;
+    }
+
+    private <T extends Metric> T getOrAdd(String name, Class<T> type, Function<String, T> factory) {
+        Metric metric = metrics.get(name);
+        if (metric == null) {
+            metric = metrics.computeIfAbsent(name, factory);
+        }
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is already registered as " + metric.getClass().getSimpleName());
+        }
+        return type.cast(metric);
+    }
+}
@@ -0,0 +1,37 @@
+package com.zbq.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * 记录出现过的最小值，和MaxGauge相同，只是累加函数是Long::min
+ */
+public final class MinGauge implements Metric {
+
+    private final LongAccumulator min = new LongAccumulator(Long::min, Long.MAX_VALUE);
+
+    public void update(long value) {
+        min.accumulate(value);
+    }
+
+    /**
+     * 最小值，还没有记录过时返回0
+     */
+    public long get() {
+        long v = min.get();
+        return v == Long.MAX_VALUE ? 0 : v;
+    }
+
+    /**
+     * 返回最小值并重新开始记录
+     */
+    public long getThenReset() {
+        long v = min.getThenReset();
+        return v == Long.MAX_VALUE ? 0 : v;
+    }
+
+    @Override
+    public void snapshot(String name, Map<String, Number> into) {
+        into.put(name, get());
+    }
+}
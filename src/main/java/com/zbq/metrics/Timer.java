@@ -0,0 +1,60 @@
+package com.zbq.metrics;
+
+import java.util.Map;
+
+/**
+ * 计时器：耗时的分布（LatencyRecorder，线程按哈希分散到固定数量的直方图上）加上速率（Meter）
+ *
+ * 记录时写当前线程对应的直方图再mark一次，不加锁也不分配内存；
+ * 快照时合并所有直方图，计算百分位，这部分开销在汇报线程中。
+ */
+public final class Timer implements Metric {
+
+    private final LatencyRecorder recorder;
+    private final Meter meter = new Meter();
+
+    public Timer(String name) {
+        this.recorder = new LatencyRecorder(name);
+    }
+
+    /**
+     * 记录一次耗时，单位纳秒
+     */
+    public void record(long nanos) {
+        recorder.record(nanos);
+        meter.mark();
+    }
+
+    /**
+     * 记录从startNanos（System.nanoTime()）到现在的耗时
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return meter.getCount();
+    }
+
+    public Meter getMeter() {
+        return meter;
+    }
+
+    /**
+     * 所有线程从开始到现在的累计分布
+     */
+    public LatencyHistogram snapshot() {
+        return recorder.snapshot();
+    }
+
+    @Override
+    public void snapshot(String name, Map<String, Number> into) {
+        LatencyHistogram h = recorder.snapshot();
+        into.put(name + ".count", h.getTotalCount());
+        into.put(name + ".m1Rate", meter.getOneMinuteRate());
+        into.put(name + ".p50Us", h.percentile(50) / 1000.0);
+        into.put(name + ".p99Us", h.percentile(99) / 1000.0);
+        into.put(name + ".p999Us", h.percentile(99.9) / 1000.0);
+        into.put(name + ".maxUs", h.getMax() / 1000.0);
+    }
+}
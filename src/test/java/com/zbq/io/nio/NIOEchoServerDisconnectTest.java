@@ -0,0 +1,152 @@
+package com.zbq.io.nio;
+
+import com.zbq.io.buffer.BufferPool;
+import com.zbq.io.nio.pipeline.ChannelContext;
+import com.zbq.io.nio.pipeline.FileRegion;
+import com.zbq.io.nio.pipeline.MessageHandler;
+import com.zbq.io.nio.pipeline.Pipeline;
+import com.zbq.io.nio.pipeline.RawFrameDecoder;
+import com.zbq.io.nio.pipeline.RawFrameEncoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * OFFLOAD模式下处理器线程还在写的时候连接被断开：
+ * 处理器线程检查closed之后、放入队列之前，Reactor线程断开连接并执行了releaseAll()，
+ * 之后放入队列的数据也必须被归还，待发送字节数回到0
+ */
+public class NIOEchoServerDisconnectTest {
+
+    private static final int REGION_SIZE = 4096;
+
+    private Path file;
+    private FileChannel channel;
+    private NIOEchoServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("region", ".bin");
+        Files.write(file, new byte[REGION_SIZE]);
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.shutdown();
+        }
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * remaining()第一次被调用时（EchoClient.write()已经检查过closed，还没有放入队列）停下来，
+     * 等连接断开之后再继续
+     */
+    static class BlockingRegion extends FileRegion {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger released = new AtomicInteger();
+
+        BlockingRegion(FileChannel file) {
+            super(file, 0, REGION_SIZE, true);
+        }
+
+        @Override
+        public long remaining() {
+            if (entered.getCount() > 0) {
+                entered.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.remaining();
+        }
+
+        @Override
+        public void release() {
+            released.incrementAndGet();
+            super.release();
+        }
+    }
+
+    @Test
+    public void writeAfterDisconnectIsReleased() throws Exception {
+        final BlockingRegion region = new BlockingRegion(channel);
+        MessageHandler handler = new MessageHandler() {
+            @Override
+            public void handle(ChannelContext ctx, ByteBuffer msg) {
+                ctx.write(region);
+            }
+        };
+        server = new NIOEchoServer("localhost", 0, 1, NIOEchoServer.BalanceStrategy.ROUND_ROBIN);
+        server.setQuiet(true);
+        server.setPipeline(new Pipeline(RawFrameDecoder.INSTANCE, handler, RawFrameEncoder.INSTANCE));
+        server.setExecutionMode(NIOEchoServer.ExecutionMode.OFFLOAD, 1, 16);
+        server.bind();
+        Thread boss = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startServer();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "test-boss");
+        boss.setDaemon(true);
+        boss.start();
+
+        Socket socket = new Socket("localhost", server.getLocalPort());
+        OutputStream out = socket.getOutputStream();
+        out.write(1);
+        out.flush();
+        assertTrue("handler not called", region.entered.await(5, TimeUnit.SECONDS));
+
+        //RST断开，Reactor线程读到异常后断开连接
+        socket.setSoLinger(true, 0);
+        socket.close();
+        await(new BooleanSupplier() {
+            @Override
+            public boolean getAsBoolean() {
+                return server.getQueuedBytesByConnection().isEmpty();
+            }
+        });
+
+        region.proceed.countDown();
+        await(new BooleanSupplier() {
+            @Override
+            public boolean getAsBoolean() {
+                return region.released.get() > 0 && server.getQueuedBytes() == 0;
+            }
+        });
+        assertEquals(1, region.released.get());
+        assertEquals(0, server.getQueuedBytes());
+        assertEquals(0, BufferPool.DEFAULT.outstanding());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}